@@ -1,28 +1,81 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ClientConnection {
 
+    // Bin request ops and reply kinds, as in the server's Bin class
+    private static final int OP_TEXT = 0, OP_POST = 1, OP_PIN = 2, OP_UNPIN = 3, OP_GET = 4, OP_PINS = 5;
+    private static final int F_COLOR = 1, F_CONTAINS = 2, F_REF = 4, F_LIMIT = 8, F_AFTER = 16, F_COUNT = 32;
+    private static final int R_LINE = 0, R_NOTES = 1, R_PINS = 2, R_DEFLATE = 3, R_PAGE = 4, R_EVENT = 5;
+    private static final String EVENT = "EVENT ";
+
+    private static final Charset CS = Charset.defaultCharset();
+
     private Socket sock;
-    private BufferedReader in;
+    private In in;
+    private OutputStream raw;
     private PrintWriter out;
 
+    // ask for PROTO BINARY on connect; servers that don't know it keep us on text
+    private boolean wantBinary = true;
+    private boolean bin;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+    // gets WATCH events ("NOTE_ADDED x y color msg", "PINNED x y", ..., "RESYNC")
+    // on the reader thread
+    private volatile Consumer<String> onEvent;
+
+    // COMPRESS ON is opt-in: big GETs then arrive deflated and are inflated here
+    private boolean wantZip;
+    private byte[] zipDict;
+
     private int bw, bh, nw, nh;
     private final List<String> cols = new ArrayList<>();
 
+    // Requests written but not yet answered, oldest first. The server answers
+    // strictly in order, so the reader thread just pops the head per response.
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    private static class Pending {
+        final boolean multi;
+        final CompletableFuture<String> fut = new CompletableFuture<>();
+
+        Pending(boolean multi) {
+            this.multi = multi;
+        }
+    }
+
     public void connect(String host, int port) throws IOException {
         close();
 
         sock = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-        out = new PrintWriter(sock.getOutputStream(), true);
+        in = new In(sock.getInputStream());
+        raw = new BufferedOutputStream(sock.getOutputStream());
+        out = new PrintWriter(new OutputStreamWriter(raw, CS), false);
 
         String a = in.readLine();
+        if (a != null && a.startsWith("ERROR ")) {
+            // turned away at the door, e.g. ERROR SERVER_BUSY
+            throw new IOException(a);
+        }
+
         String b = in.readLine();
         String c = in.readLine();
 
@@ -31,6 +84,20 @@ public class ClientConnection {
         }
 
         readHandshake(a, b, c);
+
+        if (wantBinary) {
+            bin = ask("PROTO BINARY").equals("OK PROTO BINARY");
+        }
+        if (wantZip && ask("COMPRESS ON").equals("OK COMPRESS ON")) {
+            zipDict = zipDict(cols);
+        }
+
+        In rin = in;
+        boolean rbin = bin;
+        byte[] dict = zipDict;
+        Thread t = new Thread(() -> readLoop(rin, rbin, dict), "bboard-client-reader");
+        t.setDaemon(true);
+        t.start();
     }
 
     public boolean connected() {
@@ -40,40 +107,128 @@ public class ClientConnection {
     public void close() {
         try { if (sock != null) sock.close(); } catch (IOException e) { }
 
-        sock = null;
-        in = null;
-        out = null;
+        synchronized (pending) {
+            failAll(new IOException("Connection closed"));
+            sock = null;
+            in = null;
+            raw = null;
+            out = null;
+            bin = false;
+            zipDict = null;
+            onEvent = null;
+        }
 
         bw = bh = nw = nh = 0;
         cols.clear();
     }
 
+    // Takes effect on the next connect().
+    public void setBinary(boolean on) {
+        wantBinary = on;
+    }
+
+    // True if this connection negotiated the compact binary protocol.
+    public boolean binary() {
+        return bin;
+    }
+
+    // Takes effect on the next connect().
+    public void setCompress(boolean on) {
+        wantZip = on;
+    }
+
+    // True if large responses on this connection may arrive compressed.
+    public boolean compressed() {
+        return zipDict != null;
+    }
+
     public String send(String cmd) throws IOException {
-        if (!connected() || in == null || out == null) {
-            throw new IOException("Not connected");
+        try {
+            return sendAsync(cmd).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            throw new IOException(c);
         }
+    }
 
-        out.println(cmd);
+    // Writes cmd and returns at once; the future completes with the full
+    // response (all lines of a GET). Any number may be in flight.
+    public CompletableFuture<String> sendAsync(String cmd) {
+        List<String> one = new ArrayList<>(1);
+        one.add(cmd);
+        return pipeline(one).get(0);
+    }
 
-        String first = in.readLine();
-        if (first == null) throw new IOException("Server closed connection");
+    // Subscribes to board changes. Events arrive between responses and go to
+    // onEvent rather than to any request's future. RESYNC means some were
+    // dropped and the board should be read again.
+    public CompletableFuture<String> watch(Consumer<String> onEvent) {
+        this.onEvent = onEvent;
+        return sendAsync("WATCH");
+    }
 
-        String t = cmd.trim();
-        if (t.startsWith("GET")) {
-            int n = okCount(first);
-            if (n >= 0) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(first);
-                for (int i = 0; i < n; i++) {
-                    String next = in.readLine();
-                    if (next == null) throw new IOException("Server closed connection mid-response");
-                    sb.append("\n").append(next);
+    public CompletableFuture<String> unwatch() {
+        return sendAsync("UNWATCH").whenComplete((r, e) -> onEvent = null);
+    }
+
+    // Sends cmds as one BATCH (POST/PIN/UNPIN only). The server applies all
+    // of them or none and answers once: OK BATCHED <n> or the first error.
+    public CompletableFuture<String> batch(List<String> cmds) {
+        synchronized (pending) {
+            if (!connected() || out == null) {
+                return CompletableFuture.failedFuture(new IOException("Not connected"));
+            }
+
+            Pending p = new Pending(false);
+            pending.add(p);
+
+            try {
+                write("BATCH " + cmds.size());
+                for (String cmd : cmds) write(cmd);
+                flush();
+            } catch (IOException e) {
+                failAll(new IOException("Write failed"));
+            }
+            return p.fut;
+        }
+    }
+
+    // Writes every command with a single flush, one future per command, in order.
+    public List<CompletableFuture<String>> pipeline(List<String> cmds) {
+        List<CompletableFuture<String>> futs = new ArrayList<>(cmds.size());
+
+        synchronized (pending) {
+            if (!connected() || out == null) {
+                for (int i = 0; i < cmds.size(); i++) {
+                    futs.add(CompletableFuture.failedFuture(new IOException("Not connected")));
                 }
-                return sb.toString();
+                return futs;
+            }
+
+            try {
+                for (String cmd : cmds) {
+                    Pending p = new Pending(cmd.trim().startsWith("GET"));
+                    pending.add(p);
+                    futs.add(p.fut);
+                    write(cmd);
+                }
+                flush();
+            } catch (IOException e) {
+                failAll(new IOException("Write failed"));
             }
         }
+        return futs;
+    }
 
-        return first;
+    // The NEXT cursor of a partial GET page ("OK <n> NEXT <cursor>"), or null.
+    public static String nextCursor(String resp) {
+        int nl = resp.indexOf('\n');
+        String[] p = (nl < 0 ? resp : resp.substring(0, nl)).trim().split("\\s+");
+        return p.length == 4 && p[0].equals("OK") && p[2].equals("NEXT") ? p[3] : null;
     }
 
     public int bw() { return bw; }
@@ -85,6 +240,196 @@ public class ClientConnection {
         return new ArrayList<>(cols);
     }
 
+    // One request/response during connect(), before the reader thread runs.
+    private String ask(String cmd) throws IOException {
+        write(cmd);
+        flush();
+
+        String r = bin ? (in.u8() == R_LINE ? in.str() : null) : in.readLine();
+        if (r == null) throw new IOException("Handshake failed");
+        return r;
+    }
+
+    // Must match the server's Protocol.zipDict.
+    private static byte[] zipDict(List<String> cols) {
+        StringBuilder sb = new StringBuilder("OK PIN ");
+        for (String c : cols) sb.append(" PINNED=true\nNOTE 1 1 ").append(c).append(' ');
+        sb.append(" PINNED=false\nNOTE ");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(String cmd) throws IOException {
+        if (!bin) {
+            out.println(cmd);
+            return;
+        }
+
+        frame.reset();
+        encode(cmd);
+        var(raw, frame.size());
+        frame.writeTo(raw);
+    }
+
+    private void flush() throws IOException {
+        if (!bin) {
+            out.flush();
+            if (out.checkError()) throw new IOException("Write failed");
+            return;
+        }
+        raw.flush();
+    }
+
+    // Writes cmd's Bin request body into frame: a compact op when cmd is a
+    // well-formed POST/PIN/UNPIN/GET, otherwise the line itself as OP_TEXT
+    // (the server then answers it, errors included, exactly as in text mode).
+    private void encode(String cmd) {
+        String[] t = simpleTokens(cmd);
+        if (t != null && t.length > 0) {
+            switch (t[0]) {
+                case "POST":
+                    if (encodePost(cmd.trim(), t)) return;
+                    break;
+                case "PIN":
+                case "UNPIN":
+                    if (t.length == 3 && isInt(t[1]) && isInt(t[2])) {
+                        frame.write(t[0].equals("PIN") ? OP_PIN : OP_UNPIN);
+                        zz(Integer.parseInt(t[1]));
+                        zz(Integer.parseInt(t[2]));
+                        return;
+                    }
+                    break;
+                case "GET":
+                    if (encodeGet(t)) return;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        frame.reset();
+        frame.write(OP_TEXT);
+        str(frame, cmd);
+    }
+
+    private boolean encodePost(String line, String[] t) {
+        if (t.length < 5 || !isInt(t[1]) || !isInt(t[2])) return false;
+        int ci = cols.indexOf(t[3]);
+        if (ci < 0) return false;
+
+        // the message is everything from its first word on, inner spacing kept
+        int at = 0;
+        for (int i = 0; i < 4; i++) {
+            at = line.indexOf(t[i], at) + t[i].length();
+        }
+        String msg = line.substring(line.indexOf(t[4], at));
+
+        frame.write(OP_POST);
+        zz(Integer.parseInt(t[1]));
+        zz(Integer.parseInt(t[2]));
+        var(frame, ci);
+        str(frame, msg);
+        return true;
+    }
+
+    private boolean encodeGet(String[] t) {
+        if (t.length == 2 && t[1].equals("PINS")) {
+            frame.write(OP_PINS);
+            return true;
+        }
+
+        int flags = 0, ci = -1, x = 0, y = 0, limit = 0;
+        String ref = null, after = null;
+
+        int i0 = 1;
+        if (t.length > 1 && t[1].equals("COUNT")) {
+            flags |= F_COUNT;
+            i0 = 2;
+        }
+
+        for (int i = i0; i < t.length; i++) {
+            if (t[i].startsWith("color=") && (flags & F_COLOR) == 0) {
+                ci = cols.indexOf(t[i].substring(6));
+                if (ci < 0) return false;
+                flags |= F_COLOR;
+            } else if (t[i].startsWith("contains=") && (flags & F_CONTAINS) == 0 && i + 1 < t.length) {
+                String a = t[i].substring(9);
+                if (!isInt(a) || !isInt(t[i + 1])) return false;
+                x = Integer.parseInt(a);
+                y = Integer.parseInt(t[++i]);
+                flags |= F_CONTAINS;
+            } else if (t[i].startsWith("refersTo=") && (flags & F_REF) == 0 && t[i].length() > 9) {
+                ref = t[i].substring(9);
+                flags |= F_REF;
+            } else if (t[i].startsWith("limit=") && (flags & (F_LIMIT | F_COUNT)) == 0 && isInt(t[i].substring(6))) {
+                limit = Integer.parseInt(t[i].substring(6));
+                if (limit < 1) return false;
+                flags |= F_LIMIT;
+            } else if (t[i].startsWith("after=") && (flags & (F_AFTER | F_COUNT)) == 0 && t[i].length() > 6) {
+                after = t[i].substring(6);
+                flags |= F_AFTER;
+            } else {
+                return false;
+            }
+        }
+
+        frame.write(OP_GET);
+        frame.write(flags);
+        if ((flags & F_COLOR) != 0) var(frame, ci);
+        if ((flags & F_CONTAINS) != 0) {
+            zz(x);
+            zz(y);
+        }
+        if ((flags & F_REF) != 0) str(frame, ref);
+        if ((flags & F_LIMIT) != 0) var(frame, limit);
+        if ((flags & F_AFTER) != 0) str(frame, after);
+        return true;
+    }
+
+    // Space-separated words of cmd, or null if it has other whitespace or
+    // control characters; those commands are left to the server's own parser.
+    private static String[] simpleTokens(String cmd) {
+        String s = cmd.trim();
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < ' ') return null;
+        }
+        return s.isEmpty() ? null : s.split(" +");
+    }
+
+    private static boolean isInt(String s) {
+        try {
+            Integer.parseInt(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void zz(int v) {
+        var(frame, (v << 1) ^ (v >> 31));
+    }
+
+    private static void var(OutputStream o, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            o.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        o.write(v);
+    }
+
+    private static void var(ByteArrayOutputStream o, int v) {
+        while ((v & ~0x7f) != 0) {
+            o.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        o.write(v);
+    }
+
+    private static void str(ByteArrayOutputStream o, String s) {
+        byte[] u = s.getBytes(StandardCharsets.UTF_8);
+        var(o, u.length);
+        o.write(u, 0, u.length);
+    }
+
     private void readHandshake(String boardLine, String noteLine, String colorsLine) throws IOException {
         String[] b = boardLine.trim().split("\\s+");
         String[] n = noteLine.trim().split("\\s+");
@@ -116,9 +461,125 @@ public class ClientConnection {
         }
     }
 
+    // Runs until its socket dies. rin identifies the connection it serves, so a
+    // loop outliving close() + connect() never touches the new connection's queue.
+    private void readLoop(In rin, boolean binary, byte[] dict) {
+        try {
+            while (true) {
+                String first = null;
+                int kind = 0;
+                if (binary) {
+                    kind = rin.u8();
+                } else if ((first = rin.readLine()) == null) {
+                    break;
+                }
+
+                if (binary ? kind == R_EVENT : first.startsWith(EVENT)) {
+                    String ev = binary ? rin.str() : first;
+                    Consumer<String> l = onEvent;
+                    try {
+                        if (l != null) l.accept(ev.substring(EVENT.length()));
+                    } catch (RuntimeException e) {
+                        // a broken listener must not take the connection down
+                    }
+                    continue;
+                }
+
+                // a compressed response: the same bytes, behind a marker and deflated
+                boolean z = dict != null && (binary ? kind == R_DEFLATE : first.equals("DEFLATE"));
+                if (z) {
+                    rin.inflate(dict);
+                    if (binary) {
+                        kind = rin.u8();
+                    } else if ((first = rin.readLine()) == null) {
+                        throw new IOException("Empty compressed response");
+                    }
+                }
+
+                Pending p;
+                synchronized (pending) {
+                    if (in != rin) return;
+                    p = pending.poll();
+                }
+
+                String resp = binary ? readRecord(rin, kind) : readText(rin, first, p);
+                if (z) rin.endInflate();
+                if (p != null) p.fut.complete(resp);
+            }
+        } catch (IOException e) {
+            // socket died or was closed; fall through and fail what's left
+        }
+
+        synchronized (pending) {
+            if (in == rin) failAll(new IOException("Server closed connection"));
+        }
+    }
+
+    private String readText(In rin, String first, Pending p) throws IOException {
+        int n = p != null && p.multi ? okCount(first) : -1;
+        StringBuilder sb = new StringBuilder(first);
+        for (int i = 0; i < n; i++) {
+            String next = rin.readLine();
+            if (next == null) {
+                p.fut.completeExceptionally(new IOException("Server closed connection mid-response"));
+                throw new IOException("Server closed connection");
+            }
+            sb.append("\n").append(next);
+        }
+        return sb.toString();
+    }
+
+    // One Bin reply record, turned back into the text protocol's response so
+    // callers see the same Strings either way.
+    private String readRecord(In rin, int kind) throws IOException {
+        switch (kind) {
+            case R_LINE:
+                return rin.str();
+
+            case R_NOTES:
+            case R_PAGE: {
+                String next = kind == R_PAGE ? rin.str() : null;
+                int n = rin.var();
+                StringBuilder sb = new StringBuilder(32 + n * 48);
+                sb.append("OK ").append(n);
+                if (next != null) sb.append(" NEXT ").append(next);
+                for (int i = 0; i < n; i++) {
+                    int x = rin.zz(), y = rin.zz(), ci = rin.var();
+                    boolean pinned = rin.u8() != 0;
+                    String msg = rin.str();
+                    sb.append("\nNOTE ").append(x).append(" ").append(y).append(" ")
+                      .append(ci >= 0 && ci < cols.size() ? cols.get(ci) : "?").append(" ")
+                      .append(msg)
+                      .append(" PINNED=").append(pinned);
+                }
+                return sb.toString();
+            }
+
+            case R_PINS: {
+                int n = rin.var();
+                StringBuilder sb = new StringBuilder();
+                sb.append("OK ").append(n);
+                for (int i = 0; i < n; i++) {
+                    int x = rin.zz(), y = rin.zz();
+                    sb.append("\nPIN ").append(x).append(" ").append(y);
+                }
+                return sb.toString();
+            }
+
+            default:
+                throw new IOException("Bad reply record " + kind);
+        }
+    }
+
+    private void failAll(IOException e) {
+        Pending p;
+        while ((p = pending.poll()) != null) p.fut.completeExceptionally(e);
+    }
+
+    // n from "OK <n>" or "OK <n> NEXT <cursor>"; -1 for any other first line.
     private int okCount(String firstLine) {
         String[] p = firstLine.trim().split("\\s+");
-        if (p.length != 2) return -1;
+        if (p.length != 2 && !(p.length == 4 && p[2].equals("NEXT"))) return -1;
         if (!p[0].equals("OK")) return -1;
         try {
             return Integer.parseInt(p[1]);
@@ -126,4 +587,132 @@ public class ClientConnection {
             return -1;
         }
     }
+
+    // Buffered reader over the socket: text lines before PROTO BINARY, Bin
+    // records after, read through an Inflater while a response is compressed.
+    private static final class In {
+        private final InputStream s;
+        private final byte[] b = new byte[8192];
+        private int p, n;
+        private byte[] line = new byte[256];
+        private boolean afterCr;
+
+        private Inflater inf;
+        private byte[] dict;
+        private final byte[] zb = new byte[8192];
+        private int zp, zn;
+
+        In(InputStream s) {
+            this.s = s;
+        }
+
+        void inflate(byte[] dict) throws IOException {
+            if (afterCr) {
+                // the marker line ended in \r\n; that \n is not part of the stream
+                afterCr = false;
+                if (raw() != '\n') p--;
+            }
+            this.dict = dict;
+            inf = new Inflater();
+            zp = zn = 0;
+        }
+
+        // Reads whatever the stream still holds past the response and hands
+        // the bytes the inflater didn't need back to the plain reader.
+        void endInflate() throws IOException {
+            while (next() >= 0) { }
+            p = n - inf.getRemaining();
+            inf.end();
+            inf = null;
+            afterCr = false;
+        }
+
+        private int next() throws IOException {
+            return inf != null ? zNext() : raw();
+        }
+
+        private int zNext() throws IOException {
+            try {
+                while (zp == zn) {
+                    if (inf.finished()) return -1;
+                    if (inf.needsInput()) {
+                        if (p == n && raw() >= 0) p--;
+                        if (p == n) throw new IOException("Server closed connection");
+                        inf.setInput(b, p, n - p);
+                        p = n;
+                    }
+                    zn = inf.inflate(zb);
+                    zp = 0;
+                    if (zn == 0 && inf.needsDictionary()) inf.setDictionary(dict);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed response: " + e.getMessage());
+            }
+            return zb[zp++] & 0xff;
+        }
+
+        private int raw() throws IOException {
+            if (p == n) {
+                n = s.read(b);
+                p = 0;
+                if (n <= 0) {
+                    n = 0;
+                    return -1;
+                }
+            }
+            return b[p++] & 0xff;
+        }
+
+        // Same line breaks as BufferedReader.readLine.
+        String readLine() throws IOException {
+            int len = 0;
+            int c;
+            while ((c = next()) >= 0) {
+                if (afterCr) {
+                    afterCr = false;
+                    if (c == '\n') continue;
+                }
+                if (c == '\n' || c == '\r') {
+                    afterCr = c == '\r';
+                    return new String(line, 0, len, CS);
+                }
+                if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                line[len++] = (byte) c;
+            }
+            return len > 0 ? new String(line, 0, len, CS) : null;
+        }
+
+        int u8() throws IOException {
+            int c = next();
+            if (afterCr) {
+                afterCr = false;
+                if (c == '\n') c = next();
+            }
+            if (c < 0) throw new IOException("Server closed connection");
+            return c;
+        }
+
+        int var() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int c = u8();
+                v |= (c & 0x7f) << shift;
+                if (c < 0x80) return v;
+            }
+            throw new IOException("Bad varint");
+        }
+
+        int zz() throws IOException {
+            int v = var();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String str() throws IOException {
+            int len = var();
+            if (len < 0) throw new IOException("Bad string length");
+            byte[] u = new byte[len];
+            for (int i = 0; i < len; i++) u[i] = (byte) u8();
+            return new String(u, StandardCharsets.UTF_8);
+        }
+    }
 }
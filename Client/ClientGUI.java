@@ -14,14 +14,19 @@ public class ClientGUI extends JFrame {
 
     private JButton postBtn;
     private JButton getBtn;
+    private JButton moreBtn;
     private JButton pinBtn;
     private JButton unpinBtn;
     private JButton shakeBtn;
     private JButton clearBtn;
+    private JToggleButton watchBtn;
 
     private JTextArea outTa;
     private JLabel statusLb;
 
+    // the last GET page's follow-up (same query, after=<cursor>), or null
+    private String moreCmd;
+
     public ClientGUI() {
         super("BBoard Client");
 
@@ -80,24 +85,30 @@ public class ClientGUI extends JFrame {
 
         postBtn = new JButton("POST");
         getBtn = new JButton("GET");
+        moreBtn = new JButton("MORE");
         pinBtn = new JButton("PIN");
         unpinBtn = new JButton("UNPIN");
         shakeBtn = new JButton("SHAKE");
         clearBtn = new JButton("CLEAR");
+        watchBtn = new JToggleButton("WATCH");
 
         postBtn.addActionListener(e -> postDialog());
         getBtn.addActionListener(e -> getDialog());
+        moreBtn.addActionListener(e -> sendCmd(moreCmd));
         pinBtn.addActionListener(e -> pinDialog());
         unpinBtn.addActionListener(e -> unpinDialog());
         shakeBtn.addActionListener(e -> sendCmd("SHAKE"));
         clearBtn.addActionListener(e -> sendCmd("CLEAR"));
+        watchBtn.addActionListener(e -> toggleWatch());
 
         btns.add(postBtn);
         btns.add(getBtn);
+        btns.add(moreBtn);
         btns.add(pinBtn);
         btns.add(unpinBtn);
         btns.add(shakeBtn);
         btns.add(clearBtn);
+        btns.add(watchBtn);
 
         outTa = new JTextArea();
         outTa.setEditable(false);
@@ -114,10 +125,13 @@ public class ClientGUI extends JFrame {
 
         postBtn.setEnabled(on);
         getBtn.setEnabled(on);
+        moreBtn.setEnabled(on && moreCmd != null);
         pinBtn.setEnabled(on);
         unpinBtn.setEnabled(on);
         shakeBtn.setEnabled(on);
         clearBtn.setEnabled(on);
+        watchBtn.setEnabled(on);
+        if (!on) watchBtn.setSelected(false);
 
         statusLb.setText(on ? "Connected" : "Not connected");
     }
@@ -126,10 +140,12 @@ public class ClientGUI extends JFrame {
         if (conn.connected()) {
             postBtn.setEnabled(!busy);
             getBtn.setEnabled(!busy);
+            moreBtn.setEnabled(!busy && moreCmd != null);
             pinBtn.setEnabled(!busy);
             unpinBtn.setEnabled(!busy);
             shakeBtn.setEnabled(!busy);
             clearBtn.setEnabled(!busy);
+            watchBtn.setEnabled(!busy);
             disconnectBtn.setEnabled(!busy);
         }
         connectBtn.setEnabled(!busy && !conn.connected());
@@ -165,6 +181,7 @@ public class ClientGUI extends JFrame {
             protected void done() {
                 try {
                     get();
+                    moreCmd = null;
                     setUiConnected(true);
 
                     log("Connected.");
@@ -231,6 +248,11 @@ public class ClientGUI extends JFrame {
                     String resp = get();
                     log("> " + cmd);
                     log(resp);
+
+                    if (cmd.startsWith("GET")) {
+                        String next = ClientConnection.nextCursor(resp);
+                        moreCmd = next == null ? null : cmd.replaceAll(" after=\\S+", "") + " after=" + next;
+                    }
                 } catch (Exception ex) {
                     log("Error: " + ex.getMessage());
                     JOptionPane.showMessageDialog(ClientGUI.this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -243,6 +265,26 @@ public class ClientGUI extends JFrame {
         w.execute();
     }
 
+    // While on, other clients' changes show up in the log as the server
+    // pushes them, instead of having to GET again to find out.
+    private void toggleWatch() {
+        if (!conn.connected()) return;
+
+        if (!watchBtn.isSelected()) {
+            conn.unwatch().whenComplete((r, e) -> SwingUtilities.invokeLater(() -> log(e == null ? r : "Error: " + e.getMessage())));
+            return;
+        }
+
+        conn.watch(ev -> SwingUtilities.invokeLater(() -> {
+            log("* " + ev);
+            // events were dropped while we lagged; show the board as it is now
+            if (ev.equals("RESYNC")) sendCmd("GET");
+        })).whenComplete((r, e) -> SwingUtilities.invokeLater(() -> {
+            if (e != null) watchBtn.setSelected(false);
+            log(e == null ? r : "Error: " + e.getMessage());
+        }));
+    }
+
     private void pinDialog() {
         XY p = askXY("PIN");
         if (p == null) return;
@@ -334,6 +376,8 @@ public class ClientGUI extends JFrame {
         JTextField cxTf = new JTextField();
         JTextField cyTf = new JTextField();
         JTextField refTf = new JTextField();
+        JTextField limitTf = new JTextField();
+        JCheckBox countCb = new JCheckBox("count only");
 
         panel.add(new JLabel("color"));
         panel.add(colBox);
@@ -346,10 +390,15 @@ public class ClientGUI extends JFrame {
         panel.add(new JLabel("refersTo (opt)"));
         panel.add(refTf);
 
+        panel.add(new JLabel("limit (opt)"));
+        panel.add(limitTf);
+        panel.add(new JLabel(""));
+        panel.add(countCb);
+
         int r = JOptionPane.showConfirmDialog(this, panel, "GET", JOptionPane.OK_CANCEL_OPTION);
         if (r != JOptionPane.OK_OPTION) return;
 
-        StringBuilder cmd = new StringBuilder("GET");
+        StringBuilder cmd = new StringBuilder(countCb.isSelected() ? "GET COUNT" : "GET");
 
         String picked = (String) colBox.getSelectedItem();
         if (picked != null && !picked.equals("(any)")) {
@@ -379,6 +428,17 @@ public class ClientGUI extends JFrame {
             cmd.append(" refersTo=").append(ref);
         }
 
+        String lim = limitTf.getText().trim();
+        if (!lim.isEmpty() && !countCb.isSelected()) {
+            Integer n = toInt(lim);
+            if (n == null || n < 1) {
+                JOptionPane.showMessageDialog(this, "limit must be a positive integer",
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            cmd.append(" limit=").append(n);
+        }
+
         sendCmd(cmd.toString());
     }
 
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+// Connection admission: caps how many clients are served at once and
+// turns the rest away with a one-line error instead of the handshake.
+public class Admission {
+
+    public static final String BUSY = "ERROR SERVER_BUSY Server is at capacity, try again later";
+
+    private final int maxConns;
+
+    public Admission(int maxConns) {
+        this.maxConns = maxConns;
+    }
+
+    // Reserves a slot for a new connection; false if the server is full.
+    public boolean enter() {
+        return Stats.reserve(maxConns);
+    }
+
+    public void admitted() {
+        Stats.accepted();
+    }
+
+    public void leave() {
+        Stats.release();
+    }
+
+    public void reject(Socket s) {
+        Stats.rejected();
+        try {
+            PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+            out.println(BUSY);
+        } catch (IOException e) {
+            // client already gone
+        } finally {
+            try { s.close(); } catch (IOException e) { }
+        }
+    }
+
+    public void reject(SocketChannel ch) {
+        Stats.rejected();
+        try {
+            // one short line fits in a fresh socket's send buffer
+            ch.configureBlocking(false);
+            Charset cs = Charset.defaultCharset();
+            ch.write(ByteBuffer.wrap((BUSY + System.lineSeparator()).getBytes(cs)));
+        } catch (IOException e) {
+            // client already gone
+        } finally {
+            try { ch.close(); } catch (IOException e) { }
+        }
+    }
+}
@@ -1,10 +1,119 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class BBoardServer {
 
     public static void main(String[] args) {
+        String mode = "thread";
+        int loops = Runtime.getRuntime().availableProcessors();
+        int maxConns = 0;
+        int workers = 0;
+        int queue = 0;
+        String walPath = null;
+        int walDelay = -1;
+        String ckPath = null;
+        int ckEvery = 0;
+
+        int o = 0;
+        while (o < args.length && args[o].startsWith("--")) {
+            String a = args[o++];
+            if (a.startsWith("--mode=")) {
+                mode = a.substring("--mode=".length());
+            } else if (a.startsWith("--loops=")) {
+                loops = mustPosInt(a.substring("--loops=".length()), "loops");
+            } else if (a.startsWith("--max-conns=")) {
+                maxConns = mustPosInt(a.substring("--max-conns=".length()), "max-conns");
+            } else if (a.startsWith("--workers=")) {
+                workers = mustPosInt(a.substring("--workers=".length()), "workers");
+            } else if (a.startsWith("--queue=")) {
+                queue = mustNonNegInt(a.substring("--queue=".length()), "queue");
+            } else if (a.startsWith("--wal=")) {
+                walPath = a.substring("--wal=".length());
+            } else if (a.startsWith("--wal-delay=")) {
+                walDelay = mustNonNegInt(a.substring("--wal-delay=".length()), "wal-delay");
+            } else if (a.startsWith("--checkpoint=")) {
+                ckPath = a.substring("--checkpoint=".length());
+            } else if (a.startsWith("--checkpoint-every=")) {
+                ckEvery = mustPosInt(a.substring("--checkpoint-every=".length()), "checkpoint-every");
+            } else {
+                System.err.println("Error: Unknown option " + a);
+                usage();
+                return;
+            }
+        }
+        if (!mode.equals("thread") && !mode.equals("nio") && !mode.equals("virtual")) {
+            System.err.println("Error: mode must be thread, nio or virtual.");
+            usage();
+            return;
+        }
+
+        if ((workers > 0 || queue > 0) && !mode.equals("thread")) {
+            System.err.println("Error: --workers and --queue only apply to thread mode.");
+            usage();
+            return;
+        }
+        if (queue > 0 && workers == 0) {
+            System.err.println("Error: --queue needs --workers.");
+            usage();
+            return;
+        }
+        if (walDelay >= 0 && walPath == null) {
+            System.err.println("Error: --wal-delay needs --wal.");
+            usage();
+            return;
+        }
+        if (walPath != null && walPath.isEmpty()) {
+            System.err.println("Error: --wal needs a file name.");
+            usage();
+            return;
+        }
+        if ((ckPath != null || ckEvery > 0) && walPath == null) {
+            System.err.println("Error: --checkpoint needs --wal.");
+            usage();
+            return;
+        }
+        if (ckEvery > 0 && ckPath == null) {
+            System.err.println("Error: --checkpoint-every needs --checkpoint.");
+            usage();
+            return;
+        }
+        if (ckPath != null && ckPath.isEmpty()) {
+            System.err.println("Error: --checkpoint needs a file name.");
+            usage();
+            return;
+        }
+
+        // what handlers (and their WATCH pushers) run on
+        ThreadFactory threads = mode.equals("virtual") ? virtualThreads() : Thread::new;
+        ExecutorService exec = null;
+        if (mode.equals("virtual")) {
+            exec = threads == null ? null : perTask(threads);
+            if (exec == null) {
+                System.err.println("Error: virtual mode needs Java 21 or newer.");
+                System.exit(1);
+            }
+        } else if (workers > 0) {
+            // a handler holds its worker for the life of the connection, so at most
+            // workers clients are served and queue more wait for their handshake
+            exec = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                queue > 0 ? new ArrayBlockingQueue<>(queue) : new SynchronousQueue<>());
+        }
+        args = Arrays.copyOfRange(args, o, args.length);
+
         if (args.length < 6) {
             usage();
             return;
@@ -25,22 +134,97 @@ public class BBoardServer {
             usage();
             return;
         }
+        if (colors.length > 256) {
+            // notes store their color as a one-byte ordinal
+            System.err.println("Error: At most 256 colors.");
+            usage();
+            return;
+        }
 
-        Board board = new Board(bw, bh, nw, nh, colors);
+        Board board = new Board(bw, bh, nw, nh, new Colors(colors));
+        if (walPath != null) {
+            try {
+                Path ck = ckPath == null ? null : Paths.get(ckPath);
+                Wal wal = Wal.open(Paths.get(walPath), ck, board, Math.max(walDelay, 0));
+                board.logTo(wal);
+                if (ck != null) Checkpoint.start(ck, board, wal, ckEvery > 0 ? ckEvery : 60);
+            } catch (IOException | InvalidPathException e) {
+                System.err.println("Error: cannot use log " + walPath + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        Admission adm = new Admission(maxConns);
 
+        try {
+            if (mode.equals("nio")) {
+                new NioServer(port, board, loops, adm).run();
+            } else {
+                serve(port, board, adm, exec, threads);
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
+
+    // Blocking accept loop; exec == null means a new thread from threads per client.
+    private static void serve(int port, Board board, Admission adm, ExecutorService exec,
+                              ThreadFactory threads) throws IOException {
+        // WATCH pushers run where handlers do, so --workers bounds both
+        Executor run = exec != null ? exec : r -> threads.newThread(r).start();
         try (ServerSocket ss = new ServerSocket(port)) {
             while (true) {
                 Socket s = ss.accept();
-                new Thread(new ClientHandler(s, board)).start();
+                if (!adm.enter()) {
+                    adm.reject(s);
+                    continue;
+                }
+
+                Runnable task = () -> {
+                    try {
+                        new ClientHandler(s, board, run).run();
+                    } finally {
+                        adm.leave();
+                    }
+                };
+
+                try {
+                    run.execute(task);
+                    adm.admitted();
+                } catch (RejectedExecutionException e) {
+                    adm.leave();
+                    adm.reject(s);
+                }
             }
-        } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+        } finally {
+            if (exec != null) exec.shutdown();
+        }
+    }
+
+    // Thread.ofVirtual().factory() and Executors.newThreadPerTaskExecutor,
+    // looked up reflectively so the server still builds and runs on older JDKs.
+    private static ThreadFactory virtualThreads() {
+        try {
+            Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(b);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService perTask(ThreadFactory threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threads);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
     private static void usage() {
         System.err.println(
-            "Usage: java BBoardServer <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>"
+            "Usage: java BBoardServer [--mode=thread|nio|virtual] [--loops=N] [--max-conns=N] "
+                + "[--workers=N [--queue=N]] [--wal=FILE [--wal-delay=MICROS] [--checkpoint=FILE [--checkpoint-every=SECONDS]]] "
+                + "<port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>"
         );
         System.exit(1);
     }
@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+
+// Compact binary protocol, switched on per connection by PROTO BINARY.
+//
+// Requests are frames: <varint length><op><fields>. Anything without a
+// compact form travels as OP_TEXT carrying the usual command line.
+// Replies are self-delimiting records starting with a kind byte, so a GET
+// can still be streamed without knowing its size up front.
+//
+// Integers are varints, coordinates zigzag varints, colors ordinals into
+// the handshake's COLORS list, strings <varint length><UTF-8 bytes>.
+public final class Bin {
+
+    public static final String PROTO = "BINARY";
+    // A frame is one command (a BATCH sends its ops as frames of their own),
+    // so this only has to leave room for a POST with a long message.
+    public static final int MAX_FRAME = 1 << 20;
+
+    // request ops
+    public static final int OP_TEXT = 0;  // line
+    public static final int OP_POST = 1;  // x y color msg
+    public static final int OP_PIN = 2;   // x y
+    public static final int OP_UNPIN = 3; // x y
+    public static final int OP_GET = 4;   // flags [color] [x y] [ref] [limit] [after]
+    public static final int OP_PINS = 5;  // GET PINS
+
+    // OP_GET filter flags
+    public static final int F_COLOR = 1;
+    public static final int F_CONTAINS = 2;
+    public static final int F_REF = 4;
+    public static final int F_LIMIT = 8;
+    public static final int F_AFTER = 16;
+    public static final int F_COUNT = 32; // GET COUNT
+
+    // reply kinds
+    public static final int R_LINE = 0;  // line
+    public static final int R_NOTES = 1; // count, then x y color pinned(0/1) msg per note
+    public static final int R_PINS = 2;  // count, then x y per pin
+    public static final int R_DEFLATE = 3; // a deflate stream holding one list record
+    public static final int R_PAGE = 4;  // next cursor, then as R_NOTES
+    public static final int R_EVENT = 5; // a WATCH event line; not an answer to any request
+
+    private Bin() { }
+
+    public static int zig(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    public static int unzig(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // Reads one request frame body. Running off the end sets bad instead of throwing.
+    public static final class In {
+        private final byte[] b;
+        private final int end;
+        private int pos;
+        private boolean bad;
+
+        public In(byte[] b, int len) {
+            this.b = b;
+            this.end = len;
+        }
+
+        public boolean bad() {
+            return bad;
+        }
+
+        public boolean atEnd() {
+            return pos == end;
+        }
+
+        public int u8() {
+            if (pos >= end) {
+                bad = true;
+                return 0;
+            }
+            return b[pos++] & 0xff;
+        }
+
+        public int var() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int c = u8();
+                v |= (c & 0x7f) << shift;
+                if (c < 0x80) return v;
+            }
+            bad = true;
+            return 0;
+        }
+
+        public int zz() {
+            return unzig(var());
+        }
+
+        public String str() {
+            int n = var();
+            if (n < 0 || n > end - pos) {
+                bad = true;
+                return "";
+            }
+            String s = new String(b, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+    }
+}
@@ -1,9 +1,21 @@
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Board {
 
+    private static final ExecutorService PREP = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "bboard-clear");
+        t.setDaemon(true);
+        return t;
+    });
+
     public static class PostRes {
         public final boolean ok;
         public final String code;
@@ -26,17 +38,56 @@ public class Board {
 
     private final int bw, bh;
     private final int nw, nh;
-    private final String[] cols;
-
-    private final List<Note> notes = new ArrayList<>();
-    private final List<Pin> pins = new ArrayList<>();
-
-    public Board(int bw, int bh, int nw, int nh, String[] cols) {
+    private final Colors colors;
+    private final Cells cells;
+    private final Tiles tiles;
+
+    // Writers first lock the tiles they touch (see Tiles), which is where
+    // POST and PIN do their checks and per-note work, then take this board
+    // lock only for the commit: appending to the generation and publishing.
+    // A ReentrantLock rather than the monitor, so a handler on a virtual
+    // thread parks instead of pinning its carrier while it waits.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Writer-side state, only touched under the board lock. gen is only
+    // replaced with every tile held too, so a tile holder may read it.
+    private Gen gen;
+    private PinBits bits = PinBits.EMPTY;
+    private PinList pins = PinList.empty();
+    // per tile, the positions holding a note; each under its tile's lock
+    private LongMap<Boolean>[] byPos;
+    private Grid<Pin> pinGrid;
+    private LongMap<Pin> pinByPos;
+
+    // The empty tables the next CLEAR swaps in, built off the request path.
+    private CompletableFuture<Fresh> next;
+    private long ver;
+
+    // WATCH subscribers, and the events of the mutation in progress; they go
+    // out right after it is published, so a watcher's follow-up GET sees it
+    private final List<Watch> watchers = new CopyOnWriteArrayList<>();
+    private final List<String> events = new ArrayList<>();
+
+    // What readers see; replaced after every mutation.
+    private volatile Snap snap;
+
+    // Encoded GET replies for the current snap (see GetCache).
+    private final GetCache gets = new GetCache();
+
+    // Set once at startup, after the log has been replayed into this board.
+    private Wal wal;
+
+    public Board(int bw, int bh, int nw, int nh, Colors colors) {
         this.bw = bw;
         this.bh = bh;
         this.nw = nw;
         this.nh = nh;
-        this.cols = cols;
+        this.colors = colors;
+        this.cells = new Cells(bw, bh, nw, nh);
+        this.tiles = new Tiles(bw, bh, nw, nh);
+        use(fresh());
+        prepare();
+        publish();
     }
 
     public int getBoardW() { return bw; }
@@ -44,123 +95,403 @@ public class Board {
     public int getNoteW() { return nw; }
     public int getNoteH() { return nh; }
 
-    public String colorsLine() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("COLORS ").append(cols.length);
-        for (String c : cols) sb.append(" ").append(c);
-        return sb.toString();
+    public Colors colors() {
+        return colors;
     }
 
-    public boolean colorOk(String c) {
-        for (String s : cols) {
-            if (s.equals(c)) return true;
-        }
-        return false;
+    public GetCache gets() {
+        return gets;
     }
 
-    public synchronized void clear() {
-        notes.clear();
-        pins.clear();
+    public void watch(Watch w) {
+        watchers.add(w);
     }
 
-    public synchronized void shake() {
-        List<Note> gone = new ArrayList<>();
+    public void unwatch(Watch w) {
+        watchers.remove(w);
+    }
 
-        Iterator<Note> it = notes.iterator();
-        while (it.hasNext()) {
-            Note n = it.next();
-            if (!n.isPinned()) {
-                gone.add(n);
-                it.remove();
-            }
+    // Every mutation from now on is appended to wal.
+    public void logTo(Wal wal) {
+        lock.lock();
+        try {
+            this.wal = wal;
+            publish(); // so snap().logEnd() is a position in wal
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (gone.isEmpty()) return;
+    // How far the log has to reach before a reply may go out: everything
+    // appended so far, since a reply can reflect any published change.
+    public long logMark() {
+        Wal l = wal;
+        return l == null ? 0 : l.end();
+    }
+
+    // Blocks until the log is on disk up to mark (from logMark()).
+    public void sync(long mark) {
+        Wal l = wal;
+        if (l != null) l.sync(mark);
+    }
 
-        Iterator<Pin> pit = pins.iterator();
-        while (pit.hasNext()) {
-            Pin p = pit.next();
-            p.removeNotes(gone);
-            if (p.isEmpty()) pit.remove();
+    // True if the log is on disk up to mark; otherwise false, and then runs
+    // when it is (on the log's thread, so it should only hand off).
+    public boolean logged(long mark, Runnable then) {
+        Wal l = wal;
+        return l == null || l.synced(mark, then);
+    }
+
+    // Checkpoint.load rebuilds an empty board, before anyone else can see it,
+    // with restoreNote() for every note in slot order, restorePin() for every
+    // pin, then restored() with the slots the pins hold.
+
+    public void restoreNote(int x, int y, int ci, String msg) {
+        tiles.lock(x, y, 1, 1);
+        lock.lock();
+        try {
+            gen.add(x, y, ci, msg, null);
+            byPos[tiles.at(x, y)].put(LongMap.key(x, y), Boolean.TRUE);
+        } finally {
+            lock.unlock();
+            tiles.unlock(x, y, 1, 1);
         }
     }
 
-    public synchronized boolean pinAt(int x, int y) {
-        List<Note> hits = notesAt(x, y);
-        if (hits.isEmpty()) return false;
+    public void restorePin(int x, int y, int[] slots, int k) {
+        lock.lock();
+        try {
+            Pin p = new Pin(x, y);
+            pins = pins.with(p);
+            pinByPos.put(LongMap.key(x, y), p);
+            pinGrid.add(p, x, y, 1, 1);
+            for (int i = 0; i < k; i++) p.addIfMissing(gen.handle(slots[i]));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        Pin p = findPin(x, y);
-        if (p == null) {
-            p = new Pin(x, y);
-            pins.add(p);
+    public void restored(BitSet pinned) {
+        lock.lock();
+        try {
+            bits = PinBits.of(pinned);
+            publish();
+        } finally {
+            lock.unlock();
         }
+    }
+
+    // Lock-free read path: the latest published view of the board.
+    public Snap snap() {
+        return snap;
+    }
 
-        for (Note n : hits) {
-            p.addIfMissing(n);
+    // Swaps in tables built ahead of time, so it costs the same on any
+    // board; the old ones are left to the GC, and readers still on the old
+    // Snap keep walking them. Only a CLEAR that comes before the previous
+    // one's replacement is ready builds its tables inline.
+    public void clear() {
+        tiles.lockAll();
+        lock.lock();
+        try {
+            Fresh f = next.getNow(null);
+            if (f == null) f = fresh();
+            use(f);
+            prepare();
+            if (wal != null) wal.clear();
+            event(Watch.CLEARED);
+            publish();
+        } finally {
+            lock.unlock();
+            tiles.unlockAll();
         }
-        return true;
     }
 
-    public synchronized boolean unpinAt(int x, int y) {
-        Pin p = findPin(x, y);
-        if (p == null) return false;
+    public void shake() {
+        tiles.lockAll();
+        lock.lock();
+        try {
+            List<Note> keep = new ArrayList<>();
+            for (int i = 0; i < gen.size(); i++) {
+                Note n = gen.note(i);
+                if (n != null && n.isPinned()) keep.add(n);
+            }
 
-        p.removeAll();
-        pins.remove(p);
-        return true;
+            if (keep.size() == gen.size()) return;
+
+            // No pin needs visiting: a note is gone only if no pin holds it
+            // (its own pin list is empty), so every pin and its notes stay.
+            NoteCols.Cols c = gen.data.cols();
+            for (int i = 0; i < gen.size(); i++) {
+                Note n = gen.note(i);
+                if (n == null || !n.isPinned()) byPos[tiles.at(c.x[i], c.y[i])].remove(LongMap.key(c.x[i], c.y[i]));
+            }
+
+            // survivors move into a fresh generation; readers still on the old
+            // one keep walking it undisturbed
+            Gen g = new Gen(cells, colors.size(), nw, nh);
+            g.keep(gen, keep);
+            gen = g;
+            bits = PinBits.firstN(keep.size());
+            if (wal != null) wal.shake();
+            event(Watch.SHAKEN);
+            publish();
+        } finally {
+            lock.unlock();
+            tiles.unlockAll();
+        }
     }
 
-    public synchronized PostRes post(int x, int y, String col, String msg) {
-        if (!colorOk(col)) {
-            return PostRes.err("COLOR_NOT_SUPPORTED", col + " is not a valid color");
+    public boolean pinAt(int x, int y) {
+        tiles.lock(x, y, 1, 1);
+        try {
+            // with the point's tile held no note can land on it or leave it,
+            // so the one scan of its cell still holds under the commit lock
+            int[] hits = slotsAt(x, y);
+            if (hits.length == 0) return false;
+
+            lock.lock();
+            try {
+                doPin(x, y, hits);
+                if (wal != null) wal.pin(x, y);
+                publish();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            tiles.unlock(x, y, 1, 1);
         }
+    }
 
+    public boolean unpinAt(int x, int y) {
+        tiles.lock(x, y, 1, 1);
+        lock.lock();
+        try {
+            if (!doUnpin(x, y)) return false;
+            if (wal != null) wal.unpin(x, y);
+            publish();
+            return true;
+        } finally {
+            lock.unlock();
+            tiles.unlock(x, y, 1, 1);
+        }
+    }
+
+    // ci is an ordinal into colors(); callers resolve the name first.
+    public PostRes post(int x, int y, int ci, String msg) {
         if (!fits(x, y)) {
             return PostRes.err("OUT_OF_BOUNDS", "Note exceeds board boundaries");
         }
 
-        for (Note ex : notes) {
-            if (ex.getX() == x && ex.getY() == y && ex.getW() == nw && ex.getH() == nh) {
+        tiles.lock(x, y, nw, nh);
+        try {
+            // every note is nw x nh, so a complete overlap means the same (x, y)
+            LongMap<Boolean> taken = byPos[tiles.at(x, y)];
+            long k = LongMap.key(x, y);
+            if (taken.get(k) != null) {
                 return PostRes.err("COMPLETE_OVERLAP", "Note overlaps an existing note entirely");
             }
+            String low = msg.toLowerCase();
+            long[] keys = GramIndex.grams(low);
+
+            lock.lock();
+            try {
+                place(x, y, ci, msg, low, keys);
+                if (wal != null) wal.post(x, y, ci, msg);
+                publish();
+            } finally {
+                lock.unlock();
+            }
+            taken.put(k, Boolean.TRUE);
+            return PostRes.ok();
+        } finally {
+            tiles.unlock(x, y, nw, nh);
         }
+    }
 
-        Note n = new Note(x, y, nw, nh, col, msg);
-        notes.add(n);
+    // Runs every op under one lock acquisition, all or nothing: the whole
+    // list is checked against the board (plus the effects of earlier ops)
+    // before anything is applied, and readers see it as a single change.
+    // On failure the error message names the 1-based op that failed.
+    // It may touch anywhere, so it holds every tile.
+    public PostRes batch(List<Op> ops) {
+        tiles.lockAll();
+        lock.lock();
+        try {
+            PostRes bad = check(ops);
+            if (bad != null) return bad;
+
+            for (Op op : ops) {
+                if (op.kind == Op.POST) {
+                    String low = op.msg.toLowerCase();
+                    place(op.x, op.y, op.ci, op.msg, low, GramIndex.grams(low));
+                    byPos[tiles.at(op.x, op.y)].put(LongMap.key(op.x, op.y), Boolean.TRUE);
+                } else if (op.kind == Op.PIN) {
+                    doPin(op.x, op.y, slotsAt(op.x, op.y));
+                } else {
+                    doUnpin(op.x, op.y);
+                }
+            }
+            if (wal != null) wal.batch(ops);
+            publish();
+            return PostRes.ok();
+        } finally {
+            lock.unlock();
+            tiles.unlockAll();
+        }
+    }
 
-        for (Pin p : pins) {
-            if (n.contains(p.getX(), p.getY())) {
-                p.addIfMissing(n);
+    private PostRes check(List<Op> ops) {
+        LongMap<Op> posted = new LongMap<>();
+        LongMap<List<Op>> postedCells = new LongMap<>();
+        LongMap<Boolean> pinNow = new LongMap<>();
+
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = ops.get(i);
+            long k = LongMap.key(op.x, op.y);
+            String at = "Command " + (i + 1) + ": ";
+
+            if (op.kind == Op.POST) {
+                if (op.ci < 0) {
+                    return PostRes.err("COLOR_NOT_SUPPORTED", at + op.col + " is not a valid color");
+                }
+                if (!fits(op.x, op.y)) {
+                    return PostRes.err("OUT_OF_BOUNDS", at + "Note exceeds board boundaries");
+                }
+                if (byPos[tiles.at(op.x, op.y)].get(k) != null || posted.get(k) != null) {
+                    return PostRes.err("COMPLETE_OVERLAP", at + "Note overlaps an existing note entirely");
+                }
+                posted.put(k, op);
+                cells.each(op.x, op.y, nw, nh, c -> {
+                    List<Op> l = postedCells.get(c);
+                    if (l == null) postedCells.put(c, l = new ArrayList<>(2));
+                    l.add(op);
+                });
+            } else if (op.kind == Op.PIN) {
+                if (!anyAt(op.x, op.y) && !coveredBy(postedCells, op.x, op.y)) {
+                    return PostRes.err("NO_NOTE_AT_COORDINATE", at + "No note contains the given point");
+                }
+                pinNow.put(k, Boolean.TRUE);
+            } else {
+                Boolean has = pinNow.get(k);
+                if (has == null) has = findPin(op.x, op.y) != null;
+                if (!has) {
+                    return PostRes.err("PIN_NOT_FOUND", at + "No pin exists at the given coordinates");
+                }
+                pinNow.put(k, Boolean.FALSE);
             }
         }
+        return null;
+    }
 
-        return PostRes.ok();
+    private boolean coveredBy(LongMap<List<Op>> postedCells, int px, int py) {
+        int c = cells.at(px, py);
+        List<Op> l = c < 0 ? null : postedCells.get(c);
+        if (l == null) return false;
+
+        for (Op op : l) {
+            if (px >= op.x && px < op.x + nw && py >= op.y && py < op.y + nh) return true;
+        }
+        return false;
     }
 
-    public synchronized List<Note> getNotes(String col, Integer cx, Integer cy, String ref) {
-        List<Note> out = new ArrayList<>();
+    // hits: the slots of the notes covering (x, y), from slotsAt()
+    private boolean doPin(int x, int y, int[] hits) {
+        if (hits.length == 0) return false;
 
-        for (Note n : notes) {
-            if (col != null && !n.getColor().equals(col)) continue;
+        Pin p = findPin(x, y);
+        if (p == null) {
+            p = new Pin(x, y);
+            pins = pins.with(p);
+            pinByPos.put(LongMap.key(x, y), p);
+            pinGrid.add(p, x, y, 1, 1);
+        }
 
-            if (cx != null && cy != null) {
-                if (!n.contains(cx, cy)) continue;
-            }
+        for (int slot : hits) {
+            p.addIfMissing(gen.handle(slot));
+            bits = bits.with(slot, true);
+        }
+        if (!watchers.isEmpty()) event(Watch.PINNED + x + " " + y);
+        return true;
+    }
 
-            if (ref != null) {
-                String a = n.getMsg().toLowerCase();
-                String b = ref.toLowerCase();
-                if (!a.contains(b)) continue;
+    private boolean doUnpin(int x, int y) {
+        Pin p = findPin(x, y);
+        if (p == null) return false;
+
+        for (Note n : p.removeAll()) {
+            if (!n.isPinned()) bits = bits.with(n.getSlot(), false);
+        }
+        pins = pins.without(p);
+        dropPin(p);
+        if (!watchers.isEmpty()) event(Watch.UNPINNED + x + " " + y);
+        return true;
+    }
+
+    // A checked POST's commit; the caller records the position in byPos.
+    private void place(int x, int y, int ci, String msg, String low, long[] keys) {
+        int slot = gen.add(x, y, ci, msg, low, keys, null);
+
+        // only pins in the grid cells under the new note can land on it
+        List<Pin> near = new ArrayList<>();
+        pinGrid.collect(x, y, nw, nh, near);
+        for (Pin p : near) {
+            if (gen.covers(slot, p.getX(), p.getY())) {
+                p.addIfMissing(gen.handle(slot));
             }
+        }
+        Note n = gen.note(slot);
+        if (n != null && n.isPinned()) bits = bits.with(slot, true);
 
-            out.add(n);
+        if (!watchers.isEmpty()) event(Watch.ADDED + x + " " + y + " " + colors.name(ci) + " " + msg);
+    }
+
+    // Everything CLEAR resets, empty.
+    private static final class Fresh {
+        final Gen gen;
+        final Grid<Pin> pinGrid;
+        final LongMap<Boolean>[] byPos;
+        final LongMap<Pin> pinByPos = new LongMap<>();
+
+        @SuppressWarnings("unchecked")
+        Fresh(Cells cells, int ncols, int nw, int nh, int ntiles) {
+            gen = new Gen(cells, ncols, nw, nh);
+            pinGrid = new Grid<>(cells);
+            byPos = (LongMap<Boolean>[]) new LongMap<?>[ntiles];
+            for (int i = 0; i < ntiles; i++) byPos[i] = new LongMap<>();
         }
+    }
+
+    private Fresh fresh() {
+        return new Fresh(cells, colors.size(), nw, nh, tiles.count());
+    }
+
+    private void use(Fresh f) {
+        gen = f.gen;
+        bits = PinBits.EMPTY;
+        pins = PinList.empty();
+        byPos = f.byPos;
+        pinGrid = f.pinGrid;
+        pinByPos = f.pinByPos;
+    }
+
+    private void prepare() {
+        next = CompletableFuture.supplyAsync(this::fresh, PREP);
+    }
 
-        return out;
+    private void publish() {
+        snap = new Snap(gen, gen.size(), bits, pins, ++ver, wal == null ? 0 : wal.end());
+
+        if (events.isEmpty()) return;
+        for (Watch w : watchers) {
+            for (String ev : events) w.add(ev);
+        }
+        events.clear();
     }
 
-    public synchronized List<Pin> pinsSnap() {
-        return new ArrayList<>(pins);
+    private void event(String ev) {
+        if (!watchers.isEmpty()) events.add(ev);
     }
 
     private boolean fits(int x, int y) {
@@ -168,18 +499,36 @@ public class Board {
         return (x + nw) <= bw && (y + nh) <= bh;
     }
 
-    private List<Note> notesAt(int x, int y) {
-        List<Note> out = new ArrayList<>();
-        for (Note n : notes) {
-            if (n.contains(x, y)) out.add(n);
+    // Slots of every note covering (x, y).
+    private int[] slotsAt(int x, int y) {
+        IntSeq l = gen.cellAt(x, y);
+        if (l == null) return new int[0];
+
+        int[] out = new int[l.size()];
+        int k = 0;
+        for (int i = 0; i < out.length; i++) {
+            int slot = l.get(i);
+            if (gen.covers(slot, x, y)) out[k++] = slot;
         }
-        return out;
+        return k == out.length ? out : Arrays.copyOf(out, k);
     }
 
-    private Pin findPin(int x, int y) {
-        for (Pin p : pins) {
-            if (p.getX() == x && p.getY() == y) return p;
+    private boolean anyAt(int x, int y) {
+        IntSeq l = gen.cellAt(x, y);
+        if (l == null) return false;
+
+        for (int i = 0; i < l.size(); i++) {
+            if (gen.covers(l.get(i), x, y)) return true;
         }
-        return null;
+        return false;
+    }
+
+    private Pin findPin(int x, int y) {
+        return pinByPos.get(LongMap.key(x, y));
+    }
+
+    private void dropPin(Pin p) {
+        pinByPos.remove(LongMap.key(p.getX(), p.getY()));
+        pinGrid.remove(p, p.getX(), p.getY(), 1, 1);
     }
 }
@@ -0,0 +1,66 @@
+import java.util.function.IntConsumer;
+
+// Uniform cell layout over the board. Cells start at note size and are
+// doubled until the table stays bounded on huge boards with tiny notes.
+public class Cells {
+
+    private static final int MAX_CELLS = 1 << 20;
+
+    private final int cw, ch;
+    private final int cols, rows;
+
+    public Cells(int bw, int bh, int nw, int nh) {
+        int w = Math.max(1, nw);
+        int h = Math.max(1, nh);
+
+        while ((long) span(bw, w) * span(bh, h) > MAX_CELLS) {
+            w *= 2;
+            h *= 2;
+        }
+
+        this.cw = w;
+        this.ch = h;
+        this.cols = span(bw, w);
+        this.rows = span(bh, h);
+    }
+
+    public int count() {
+        return cols * rows;
+    }
+
+    // Index of the cell holding (px, py), or -1 if the point is off the board.
+    public int at(int px, int py) {
+        if (px < 0 || py < 0) return -1;
+
+        int c = px / cw, r = py / ch;
+        if (c >= cols || r >= rows) return -1;
+
+        return r * cols + c;
+    }
+
+    // Every cell overlapping the rectangle, row by row.
+    public void each(int x, int y, int w, int h, IntConsumer f) {
+        if (w <= 0 || h <= 0) return;
+
+        int c0 = col(x), c1 = col(x + w - 1);
+        int r0 = row(y), r1 = row(y + h - 1);
+
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                f.accept(r * cols + c);
+            }
+        }
+    }
+
+    private int col(int x) {
+        return Math.min(cols - 1, Math.max(0, x / cw));
+    }
+
+    private int row(int y) {
+        return Math.min(rows - 1, Math.max(0, y / ch));
+    }
+
+    private static int span(int len, int cell) {
+        return (int) Math.max(1, ((long) len + cell - 1) / cell);
+    }
+}
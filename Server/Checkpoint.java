@@ -0,0 +1,175 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Board image written every so often alongside the write-ahead log, so a
+// restart loads it and replays only the log records after it instead of
+// the whole history.
+//
+// It is written from a published Snap, which never changes, so writers
+// carry on while it is saved. The file names the log it was cut from (the
+// log's id) and the log offset the Snap corresponds to, and it only goes
+// out once the log is on disk that far. It is written to a temp file and
+// renamed into place, so a crash leaves the previous one intact.
+//
+// Layout, big-endian:
+//   MAGIC, VERSION, log id (long), log offset (long)
+//   note count, then per note in slot order: x y color-ordinal msg-length msg-bytes
+//   pin count, then per pin: x y k and the k slots it holds
+//   CRC32 of everything before it
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x4242434B; // "BBCK"
+    private static final int VERSION = 1;
+
+    private Checkpoint() { }
+
+    // Saves board's current view to path every `every` seconds, skipping
+    // rounds where nothing changed.
+    public static void start(Path path, Board board, Wal wal, int every) {
+        Thread t = new Thread(() -> {
+            long last = -1;
+            while (true) {
+                try {
+                    Thread.sleep(every * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Snap s = board.snap();
+                if (s.logEnd() == last) continue;
+                try {
+                    write(path, s, wal);
+                    last = s.logEnd();
+                } catch (IOException e) {
+                    System.err.println("Warning: checkpoint to " + path + " failed: " + e.getMessage());
+                }
+            }
+        }, "bboard-checkpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public static void write(Path path, Snap s, Wal wal) throws IOException {
+        // a checkpoint must never be ahead of what the log has on disk
+        wal.sync(s.logEnd());
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fo = new FileOutputStream(tmp.toFile())) {
+            DataOutputStream out = new DataOutputStream(
+                new CheckedOutputStream(new BufferedOutputStream(fo, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(wal.id());
+            out.writeLong(s.logEnd());
+
+            NoteCols.Cols c = s.cols();
+            out.writeInt(s.count());
+            for (int i = 0; i < s.count(); i++) {
+                byte[] msg = c.msg[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(c.x[i]);
+                out.writeInt(c.y[i]);
+                out.writeInt(c.ci[i] & 0xff);
+                out.writeInt(msg.length);
+                out.write(msg);
+            }
+
+            List<Pin> pins = s.pins();
+            out.writeInt(pins.size());
+            for (Pin p : pins) {
+                int[] held = s.held(p);
+                out.writeInt(p.getX());
+                out.writeInt(p.getY());
+                out.writeInt(held.length);
+                for (int slot : held) out.writeInt(slot);
+            }
+
+            out.flush();
+            fo.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+            fo.getFD().sync();
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not every platform can sync a directory; the rename itself already happened
+        }
+    }
+
+    // Loads path into the (still empty) board if it was cut from the log
+    // with this id at an offset between from and size, the log's current
+    // length. Returns that offset, or -1 when there is no usable checkpoint
+    // and the whole log has to be replayed.
+    public static long load(Path path, Board board, long logId, long from, long size) throws IOException {
+        if (!Files.exists(path)) return -1;
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < 28 || ch.size() > Integer.MAX_VALUE) {
+                System.err.println("Warning: ignoring checkpoint " + path + ": bad size");
+                return -1;
+            }
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+            int body = b.limit() - 4;
+            CRC32 crc = new CRC32();
+            crc.update(b.duplicate().limit(body));
+            if ((int) crc.getValue() != b.getInt(body)) {
+                System.err.println("Warning: ignoring checkpoint " + path + ": bad checksum");
+                return -1;
+            }
+
+            if (b.getInt() != MAGIC || b.getInt() != VERSION) {
+                System.err.println("Warning: ignoring checkpoint " + path + ": not a checkpoint");
+                return -1;
+            }
+            long id = b.getLong();
+            long end = b.getLong();
+            if (id != logId || end < from || end > size) {
+                System.err.println("Warning: ignoring checkpoint " + path + ": it belongs to another log");
+                return -1;
+            }
+
+            // one pass, front to back, straight into the board's structures
+            int n = b.getInt();
+            byte[] msg = new byte[256];
+            for (int i = 0; i < n; i++) {
+                int x = b.getInt(), y = b.getInt(), ci = b.getInt();
+                int len = b.getInt();
+                if (msg.length < len) msg = new byte[Math.max(len, msg.length * 2)];
+                b.get(msg, 0, len);
+                board.restoreNote(x, y, ci, new String(msg, 0, len, StandardCharsets.UTF_8));
+            }
+
+            BitSet pinned = new BitSet(n);
+            int[] slots = new int[16];
+            int np = b.getInt();
+            for (int i = 0; i < np; i++) {
+                int x = b.getInt(), y = b.getInt();
+                int k = b.getInt();
+                if (slots.length < k) slots = new int[Math.max(k, slots.length * 2)];
+                for (int j = 0; j < k; j++) {
+                    slots[j] = b.getInt();
+                    pinned.set(slots[j]);
+                }
+                board.restorePin(x, y, slots, k);
+            }
+            board.restored(pinned);
+            return end;
+        }
+    }
+}
@@ -1,59 +1,224 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientHandler implements Runnable {
 
+    private static final Charset CS = Charset.defaultCharset();
+
     private final Socket sock;
     private final Board board;
+    private final Executor pushers;
+
+    private InputStream in;
+    private final byte[] ib = new byte[8192];
+    private int ip, il;
+
+    // a '\n' right after a '\r' belongs to the previous line
+    private boolean afterCr;
+    private byte[] line = new byte[256];
+
+    // Held while writing to reply, by this thread for each answer and by the
+    // WATCH pusher for each run of events, so the two never interleave. Not
+    // the monitor: it is held across socket writes, and a virtual thread
+    // blocked in one must not pin its carrier.
+    private final ReentrantLock wlock = new ReentrantLock();
+    // How far the log must be on disk before what reply holds may go out,
+    // set under wlock after each answer or run of events. busy: inside one,
+    // where a spill can reflect anything logged so far.
+    private volatile long mark;
+    private boolean busy;
+    private Session ses;
 
-    public ClientHandler(Socket sock, Board board) {
+    // pushers runs the WATCH pusher, on the same kind of thread as this
+    // handler's (and out of the same pool, if there is one).
+    public ClientHandler(Socket sock, Board board, Executor pushers) {
         this.sock = sock;
         this.board = board;
+        this.pushers = pushers;
     }
 
     @Override
     public void run() {
-        BufferedReader in = null;
-        PrintWriter out = null;
+        OutputStream raw = null;
+        Reply reply = null;
 
         try {
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            out = new PrintWriter(sock.getOutputStream(), true);
+            // bytes, not a Reader: after PROTO BINARY the same stream carries Bin frames
+            in = sock.getInputStream();
+            raw = new BufferedOutputStream(new FilterOutputStream(sock.getOutputStream()) {
+                // nothing reaches the client before the log holds what it
+                // reflects; flush() has waited already unless a big reply spills
+                @Override
+                public void write(byte[] b, int off, int n) throws IOException {
+                    board.sync(busy ? board.logMark() : mark);
+                    out.write(b, off, n);
+                }
+            });
+            reply = new Reply(raw, CS, System.lineSeparator());
 
-            out.println("BOARD " + board.getBoardW() + " " + board.getBoardH());
-            out.println("NOTE " + board.getNoteW() + " " + board.getNoteH());
-            out.println(board.colorsLine());
+            Protocol.hello(board, reply);
+            mark = board.logMark();
+            flush(reply);
 
-            String line;
-            while ((line = in.readLine()) != null) {
-                String resp = Protocol.handle(line, board);
-                writeResp(out, resp);
+            Reply r = reply;
+            ses = new Session(board, null, w -> startPusher(w, r));
 
-                if (Protocol.shouldClose(resp)) {
-                    break;
+            while (true) {
+                boolean close;
+                if (reply.binary()) {
+                    int n = readFrame();
+                    if (n < 0) break;
+                    wlock.lock();
+                    try {
+                        busy = true;
+                        close = ses.frame(line, n, reply);
+                    } finally {
+                        done();
+                    }
+                } else {
+                    String s = readLine();
+                    if (s == null) break;
+                    wlock.lock();
+                    try {
+                        busy = true;
+                        close = ses.handle(s, reply);
+                    } finally {
+                        done();
+                    }
                 }
+                if (close) break;
+
+                // pipelined clients get their replies in one write per burst
+                if (ip == il && in.available() == 0) flush(reply);
             }
         } catch (IOException e) {
             // client drop / socket died
         } finally {
+            if (ses != null) ses.close();
+            // closing the input stream closes the socket, so push out any replies first
+            if (reply != null) flush(reply);
             try { if (in != null) in.close(); } catch (IOException e) { }
-            if (out != null) out.close();
+            try { if (raw != null) raw.close(); } catch (IOException e) { }
             try { sock.close(); } catch (IOException e) { }
         }
     }
 
-    private void writeResp(PrintWriter out, String resp) {
-        if (resp == null) {
-            out.println("ERROR INVALID_FORMAT Invalid request");
-            return;
+    // This handler is parked in a blocking read most of the time, so events
+    // for a watching connection go out from a thread of their own. It quits
+    // once the Watch is closed (UNWATCH, or the connection ending). False if
+    // the pool has no thread for it.
+    private boolean startPusher(Watch w, Reply reply) {
+        Runnable push = () -> {
+            try {
+                while (w.await()) {
+                    wlock.lock();
+                    try {
+                        if (ses.watch() != w) return;
+                        busy = true;
+                        ses.events(reply);
+                    } finally {
+                        done();
+                    }
+                    flush(reply);
+                }
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+        };
+        try {
+            pushers.execute(push);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Ends an answer or run of events: releases wlock, noting how far the log
+    // has to reach for what was just written.
+    private void done() {
+        busy = false;
+        mark = board.logMark();
+        wlock.unlock();
+    }
+
+    // Waits for the log once per batch, before taking wlock, so a slow fsync
+    // doesn't keep the other writer (handler or pusher) off the lock.
+    private void flush(Reply reply) {
+        board.sync(mark);
+        wlock.lock();
+        try {
+            reply.flush();
+        } finally {
+            wlock.unlock();
+        }
+    }
+
+    private int next() throws IOException {
+        if (ip == il) {
+            il = in.read(ib);
+            ip = 0;
+            if (il <= 0) {
+                il = 0;
+                return -1;
+            }
+        }
+        return ib[ip++] & 0xff;
+    }
+
+    // Same line breaks as BufferedReader.readLine: \n, \r or \r\n.
+    private String readLine() throws IOException {
+        int len = 0;
+        int b;
+        while ((b = next()) >= 0) {
+            if (afterCr) {
+                afterCr = false;
+                if (b == '\n') continue;
+            }
+            if (b == '\n' || b == '\r') {
+                afterCr = b == '\r';
+                return new String(line, 0, len, CS);
+            }
+            if (len == line.length) line = Arrays.copyOf(line, len * 2);
+            line[len++] = (byte) b;
+        }
+        return len > 0 ? new String(line, 0, len, CS) : null;
+    }
+
+    // Reads one <varint length><body> frame into line; its length, or -1 at end of stream.
+    private int readFrame() throws IOException {
+        int b = next();
+        if (afterCr) {
+            // the PROTO line ended in \r\n
+            afterCr = false;
+            if (b == '\n') b = next();
+        }
+
+        int n = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (b < 0) return -1;
+            n |= (b & 0x7f) << shift;
+            if (b < 0x80) break;
+            if (shift >= 28) throw new IOException("Bad frame length");
+            b = next();
         }
+        if (n < 0 || n > Bin.MAX_FRAME) throw new IOException("Frame too large");
 
-        String[] lines = resp.split("\n", -1);
-        for (String s : lines) {
-            out.println(s);
+        // grown as the body arrives, not to whatever length the client claims
+        for (int i = 0; i < n; i++) {
+            int c = next();
+            if (c < 0) return -1;
+            if (i == line.length) line = Arrays.copyOf(line, Math.min(n, i * 2));
+            line[i] = (byte) c;
         }
+        return n;
     }
 }
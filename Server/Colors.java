@@ -0,0 +1,71 @@
+// The configured color list, fixed at startup. Commands name a color once,
+// at parse time, and from then on it is its ordinal (an index into the
+// list, stored on a note as one byte); the name only comes back out of
+// name() when a response is written.
+//
+// Lookups go through a small open-addressed table built up front, probed
+// straight from a Lexer token so a POST doesn't copy its color out first.
+public final class Colors {
+
+    private final String[] names;
+    private final int[] table; // ordinal + 1, 0 when empty
+    private final int mask;
+    private final String line;
+
+    public Colors(String[] names) {
+        this.names = names.clone();
+
+        int cap = 4;
+        while (cap < names.length * 2) cap <<= 1;
+        table = new int[cap];
+        mask = cap - 1;
+        for (int i = 0; i < names.length; i++) {
+            // a name given twice keeps its first ordinal, as the old scan did
+            if (ord(names[i]) >= 0) continue;
+            int s = names[i].hashCode() & mask;
+            while (table[s] != 0) s = (s + 1) & mask;
+            table[s] = i + 1;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("COLORS ").append(names.length);
+        for (String c : names) sb.append(" ").append(c);
+        line = sb.toString();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    // true if ci is an ordinal into the list
+    public boolean has(int ci) {
+        return ci >= 0 && ci < names.length;
+    }
+
+    public String name(int ci) {
+        return names[ci];
+    }
+
+    // The handshake's COLORS line.
+    public String line() {
+        return line;
+    }
+
+    // Ordinal of c, or -1 if it isn't configured.
+    public int ord(String c) {
+        for (int s = c.hashCode() & mask; ; s = (s + 1) & mask) {
+            int o = table[s] - 1;
+            if (o < 0) return -1;
+            if (names[o].equals(c)) return o;
+        }
+    }
+
+    // Ordinal of token i of lx (from offset `from`), or -1.
+    public int ord(Lexer lx, int i, int from) {
+        for (int s = lx.hash(i, from) & mask; ; s = (s + 1) & mask) {
+            int o = table[s] - 1;
+            if (o < 0) return -1;
+            if (lx.is(i, from, names[o])) return o;
+        }
+    }
+}
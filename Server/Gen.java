@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// One generation of the note store, from one SHAKE/CLEAR to the next.
+// Inside a generation every structure only grows and slots are handed out
+// in posting order, so readers can walk it without the board lock as long
+// as they stop at the note count of the Snap they started from.
+public final class Gen {
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    // tells GET cursors from different generations apart
+    final long id = IDS.incrementAndGet();
+    // what readers use
+    final NoteCols data = new NoteCols();
+    // writer only: the handle for each slot that has one (see Note)
+    private Note[] handles = new Note[16];
+    final AtomicReferenceArray<IntSeq> grid;
+    final IntSeq[] byCol;
+    final GramIndex grams = new GramIndex();
+
+    private final Cells cells;
+    private final int nw, nh;
+
+    public Gen(Cells cells, int ncols, int nw, int nh) {
+        this.cells = cells;
+        this.nw = nw;
+        this.nh = nh;
+        this.grid = new AtomicReferenceArray<>(cells.count());
+        this.byCol = new IntSeq[ncols];
+        for (int i = 0; i < ncols; i++) byCol[i] = new IntSeq();
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    // Writer only. The note's handle, or null if it never needed one.
+    public Note note(int slot) {
+        return handles[slot];
+    }
+
+    // Writer only. The note's handle, made on first use.
+    public Note handle(int slot) {
+        Note n = handles[slot];
+        if (n == null) handles[slot] = n = new Note(slot);
+        return n;
+    }
+
+    // true if the note in slot covers (px, py)
+    public boolean covers(int slot, int px, int py) {
+        NoteCols.Cols c = data.cols();
+        return covers(c.x[slot], c.y[slot], px, py);
+    }
+
+    boolean covers(int x, int y, int px, int py) {
+        return px >= x && px < x + nw && py >= y && py < y + nh;
+    }
+
+    // Writer only (board lock held). Returns the slot the note landed in;
+    // n (may be null) is its handle carried over from an older generation.
+    public int add(int x, int y, int ci, String msg, Note n) {
+        String low = msg.toLowerCase();
+        return add(x, y, ci, msg, low, GramIndex.grams(low), n);
+    }
+
+    // As above, with the message's lowercase form and trigrams worked out
+    // beforehand (Board does that outside its commit lock).
+    public int add(int x, int y, int ci, String msg, String low, long[] keys, Note n) {
+        int slot = put(x, y, ci, msg, low, n);
+        grams.add(keys, slot);
+        return slot;
+    }
+
+    // Writer only, on a fresh generation: the notes of old that survive a
+    // SHAKE, in slot order. Their lowercase forms and trigram entries are
+    // carried over rather than worked out again.
+    public void keep(Gen old, List<Note> survivors) {
+        NoteCols.Cols c = old.data.cols();
+        int[] to = new int[old.size()];
+        Arrays.fill(to, -1);
+        for (Note n : survivors) {
+            int s = n.getSlot();
+            to[s] = put(c.x[s], c.y[s], c.ci[s] & 0xff, c.msg[s], c.low[s], n);
+        }
+        grams.carry(old.grams, to);
+    }
+
+    // Everything add() does but the trigrams.
+    private int put(int x, int y, int ci, String msg, String low, Note n) {
+        int slot = data.add(x, y, ci, msg, low);
+        if (slot == handles.length) handles = Arrays.copyOf(handles, slot * 2);
+        handles[slot] = n;
+        if (n != null) n.setSlot(slot);
+
+        cells.each(x, y, nw, nh, i -> {
+            IntSeq l = grid.get(i);
+            if (l == null) {
+                l = new IntSeq();
+                grid.set(i, l);
+            }
+            l.add(slot);
+        });
+
+        byCol[ci].add(slot);
+        return slot;
+    }
+
+    // Slots whose grid cell holds (px, py), or null if none were ever posted there.
+    public IntSeq cellAt(int px, int py) {
+        int i = cells.at(px, py);
+        return i < 0 ? null : grid.get(i);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Encoded GET replies, handed out again while the board is unchanged.
+// Many clients polling the same GET between writes then cost a map lookup
+// instead of a scan and a fresh encoding.
+//
+// Keyed by the Snap version plus the normalized query and the reply's wire
+// form (see Reply.form), so every write leaves the old entries unreachable
+// without touching them. Lookups take no lock. A put that goes over either
+// bound evicts: first entries of older versions, then the least recently
+// used.
+public final class GetCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_BYTES = 16 << 20;
+
+    // a full listing of a big board isn't worth pinning in memory
+    public static final int MAX_REPLY = (int) (MAX_BYTES / 4);
+
+    private static final class Entry {
+        final long ver;
+        final Reply.Capture c;
+        volatile long used;
+
+        Entry(long ver, Reply.Capture c) {
+            this.ver = ver;
+            this.c = c;
+            used = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    // The reply cached for key as of version ver, or null.
+    public Reply.Capture get(String key, long ver) {
+        Entry e = map.get(ver + " " + key);
+        if (e == null) return null;
+        e.used = System.nanoTime();
+        Stats.cacheHit();
+        return e.c;
+    }
+
+    // Keeps the reply a miss built. Lists too big to capture never get here,
+    // so they don't count as misses.
+    public void put(String key, long ver, Reply.Capture c) {
+        Stats.cacheMiss();
+        Entry old = map.put(ver + " " + key, new Entry(ver, c));
+        bytes.addAndGet(c.n - (old == null ? 0 : old.c.n));
+        if (over()) evict(ver);
+    }
+
+    private boolean over() {
+        return bytes.get() > MAX_BYTES || map.size() > MAX_ENTRIES;
+    }
+
+    // One evicter at a time; the others go on, the bounds being loose anyway.
+    private void evict(long ver) {
+        if (!evicting.tryLock()) return;
+        try {
+            // only a reader still on an older snap could ask for these
+            for (Map.Entry<String, Entry> e : map.entrySet()) {
+                if (e.getValue().ver < ver) remove(e.getKey(), e.getValue());
+            }
+            while (over()) {
+                Map.Entry<String, Entry> lru = null;
+                for (Map.Entry<String, Entry> e : map.entrySet()) {
+                    if (lru == null || e.getValue().used < lru.getValue().used) lru = e;
+                }
+                if (lru == null) break;
+                remove(lru.getKey(), lru.getValue());
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    private void remove(String key, Entry e) {
+        if (map.remove(key, e)) bytes.addAndGet(-e.c.n);
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Trigram -> posting list of note slots, open addressing on the packed
+// trigram. Written under the board lock and read without it: entries are
+// never removed, and a value is published after its key, so a reader that
+// finds a value also sees the matching key.
+public final class GramIndex {
+
+    private static final class Tab {
+        final long[] keys;
+        final AtomicReferenceArray<IntSeq> vals;
+        final int mask;
+
+        Tab(int cap) {
+            keys = new long[cap];
+            vals = new AtomicReferenceArray<>(cap);
+            mask = cap - 1;
+        }
+    }
+
+    private volatile Tab tab = new Tab(64);
+    private int size;
+
+    public static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    public IntSeq get(long k) {
+        Tab t = tab;
+        int i = slot(k, t.mask);
+        IntSeq v;
+        while ((v = t.vals.get(i)) != null) {
+            if (t.keys[i] == k) return v;
+            i = (i + 1) & t.mask;
+        }
+        return null;
+    }
+
+    // Every trigram of s, in order, repeats included.
+    public static long[] grams(String s) {
+        long[] g = new long[Math.max(0, s.length() - 2)];
+        for (int i = 0; i < g.length; i++) g[i] = gram(s, i);
+        return g;
+    }
+
+    // Indexes grams (from grams()) under the given slot, once per distinct trigram.
+    public void add(long[] grams, int slot) {
+        for (long k : grams) {
+            IntSeq l = getOrAdd(k);
+            // repeats of a trigram in the same note land right after it
+            if (l.last() != slot) l.add(slot);
+        }
+    }
+
+    // Writer only, into an empty index: every entry of from, slot s renumbered
+    // to[s] and dropped where that is -1. to must keep slots in order.
+    public void carry(GramIndex from, int[] to) {
+        Tab t = from.tab;
+        for (int j = 0; j < t.keys.length; j++) {
+            IntSeq l = t.vals.get(j);
+            if (l == null) continue;
+
+            IntSeq m = null;
+            for (int i = 0; i < l.size(); i++) {
+                int s = to[l.get(i)];
+                if (s < 0) continue;
+                if (m == null) m = getOrAdd(t.keys[j]);
+                m.add(s);
+            }
+        }
+    }
+
+    private IntSeq getOrAdd(long k) {
+        Tab t = tab;
+        int i = slot(k, t.mask);
+        IntSeq v;
+        while ((v = t.vals.get(i)) != null) {
+            if (t.keys[i] == k) return v;
+            i = (i + 1) & t.mask;
+        }
+
+        v = new IntSeq(2);
+        t.keys[i] = k;
+        t.vals.set(i, v);
+
+        if (++size * 2 > t.keys.length) grow(t);
+        return v;
+    }
+
+    private void grow(Tab t) {
+        Tab n = new Tab(t.keys.length * 2);
+        for (int j = 0; j < t.keys.length; j++) {
+            IntSeq v = t.vals.get(j);
+            if (v == null) continue;
+            int i = slot(t.keys[j], n.mask);
+            while (n.vals.get(i) != null) i = (i + 1) & n.mask;
+            n.keys[i] = t.keys[j];
+            n.vals.set(i, v);
+        }
+        tab = n;
+    }
+
+    private static int slot(long k, int mask) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class Grid<T> {
+
+    private final Cells cells;
+    private final List<T>[] lists;
+
+    @SuppressWarnings("unchecked")
+    public Grid(Cells cells) {
+        this.cells = cells;
+        this.lists = (List<T>[]) new List<?>[cells.count()];
+    }
+
+    public void add(T t, int x, int y, int w, int h) {
+        cells.each(x, y, w, h, i -> {
+            if (lists[i] == null) lists[i] = new ArrayList<>(4);
+            lists[i].add(t);
+        });
+    }
+
+    public void remove(T t, int x, int y, int w, int h) {
+        cells.each(x, y, w, h, i -> {
+            if (lists[i] != null) lists[i].remove(t);
+        });
+    }
+
+    // Appends everything stored in the cells overlapping the rectangle.
+    // Items spanning several cells show up once per cell.
+    public void collect(int x, int y, int w, int h, List<T> out) {
+        cells.each(x, y, w, h, i -> {
+            if (lists[i] != null) out.addAll(lists[i]);
+        });
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.Arrays;
+
+// Append-only int list grown by one writer while other threads read it.
+// Readers take size() first; every element below that is then visible.
+public final class IntSeq {
+
+    private volatile int[] a;
+    private volatile int size;
+
+    public IntSeq() {
+        this(4);
+    }
+
+    public IntSeq(int cap) {
+        a = new int[Math.max(1, cap)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int i) {
+        return a[i];
+    }
+
+    // First index below n whose value is >= v, or n if none; for lists kept in order.
+    public int lowerBound(int v, int n) {
+        int[] arr = a;
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (arr[mid] < v) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public int last() {
+        return size == 0 ? -1 : a[size - 1];
+    }
+
+    public void add(int v) {
+        int[] arr = a;
+        int s = size;
+        if (s == arr.length) arr = Arrays.copyOf(arr, s * 2);
+        arr[s] = v;
+        a = arr;
+        size = s + 1;
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+// Reusable tokenizer for one command line. Tokens are kept as offsets into
+// the line, so nothing is copied unless a caller asks for a String. Follows
+// the old trim() + split("\\s+") exactly: the ends are trimmed of anything
+// <= ' ' and tokens break on [ \t\n\x0B\f\r].
+public final class Lexer {
+
+    // num() result for anything Integer.parseInt would reject
+    public static final long BAD = Long.MIN_VALUE;
+
+    private String s;
+    private int end;
+    private int count;
+    private int[] st = new int[8];
+    private int[] en = new int[8];
+
+    public Lexer reset(String line) {
+        s = line;
+        count = 0;
+
+        int a = 0, b = line.length();
+        while (a < b && line.charAt(a) <= ' ') a++;
+        while (b > a && line.charAt(b - 1) <= ' ') b--;
+        end = b;
+
+        int i = a;
+        while (i < b) {
+            while (i < b && ws(line.charAt(i))) i++;
+            if (i == b) break;
+
+            int j = i;
+            while (j < b && !ws(line.charAt(j))) j++;
+
+            if (count == st.length) {
+                st = Arrays.copyOf(st, count * 2);
+                en = Arrays.copyOf(en, count * 2);
+            }
+            st[count] = i;
+            en[count] = j;
+            count++;
+            i = j;
+        }
+        return this;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int len(int i) {
+        return en[i] - st[i];
+    }
+
+    public boolean is(int i, String word) {
+        return len(i) == word.length() && s.regionMatches(st[i], word, 0, word.length());
+    }
+
+    // Same as str(i, from).equals(word), without the String.
+    public boolean is(int i, int from, String word) {
+        return len(i) - from == word.length() && s.regionMatches(st[i] + from, word, 0, word.length());
+    }
+
+    // Same as str(i, from).hashCode().
+    public int hash(int i, int from) {
+        int h = 0;
+        for (int k = st[i] + from; k < en[i]; k++) h = 31 * h + s.charAt(k);
+        return h;
+    }
+
+    public boolean startsWith(int i, String prefix) {
+        return len(i) >= prefix.length() && s.regionMatches(st[i], prefix, 0, prefix.length());
+    }
+
+    public char charAt(int i, int off) {
+        return s.charAt(st[i] + off);
+    }
+
+    public String str(int i) {
+        return s.substring(st[i], en[i]);
+    }
+
+    public String str(int i, int from) {
+        return s.substring(st[i] + from, en[i]);
+    }
+
+    // From the start of token i to the (trimmed) end of the line.
+    public String rest(int i) {
+        return s.substring(st[i], end);
+    }
+
+    // True if everything from token i on is <= ' ', i.e. rest(i).trim() is empty.
+    public boolean blankFrom(int i) {
+        for (int k = st[i]; k < end; k++) {
+            if (s.charAt(k) > ' ') return false;
+        }
+        return true;
+    }
+
+    // True if a CR or LF sits anywhere from token i to the (trimmed) end.
+    public boolean breakFrom(int i) {
+        for (int k = st[i]; k < end; k++) {
+            char c = s.charAt(k);
+            if (c == '\n' || c == '\r') return true;
+        }
+        return false;
+    }
+
+    // Token i from offset `from`, read as an int with Integer.parseInt's rules;
+    // BAD instead of an exception when it isn't one.
+    public long num(int i, int from) {
+        int a = st[i] + from, b = en[i];
+        if (a >= b) return BAD;
+
+        boolean neg = false;
+        char c = s.charAt(a);
+        if (c == '-' || c == '+') {
+            neg = c == '-';
+            if (++a == b) return BAD;
+        }
+
+        long v = 0;
+        for (; a < b; a++) {
+            int d = Character.digit(s.charAt(a), 10);
+            if (d < 0) return BAD;
+            v = v * 10 + d;
+            if (v > 1L << 31) return BAD;
+        }
+
+        if (neg) v = -v;
+        return v > Integer.MAX_VALUE ? BAD : v;
+    }
+
+    private static boolean ws(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+// Open-addressing long -> V map (linear probing, no boxing). Null values are not allowed.
+public class LongMap<V> {
+
+    private long[] keys;
+    private Object[] vals;
+    private int mask;
+    private int size;
+
+    public LongMap() {
+        this(16);
+    }
+
+    public LongMap(int cap) {
+        int n = 16;
+        while (n < cap * 2) n <<= 1;
+        keys = new long[n];
+        vals = new Object[n];
+        mask = n - 1;
+    }
+
+    public static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long k) {
+        int i = slot(k);
+        while (vals[i] != null) {
+            if (keys[i] == k) return (V) vals[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long k, V v) {
+        if (v == null) throw new IllegalArgumentException("null value");
+
+        int i = slot(k);
+        while (vals[i] != null) {
+            if (keys[i] == k) {
+                V old = (V) vals[i];
+                vals[i] = v;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = k;
+        vals[i] = v;
+        if (++size * 2 > keys.length) grow();
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long k) {
+        int i = slot(k);
+        while (vals[i] != null) {
+            if (keys[i] == k) {
+                V old = (V) vals[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(vals, null);
+        size = 0;
+    }
+
+    // Backward-shift deletion: pull later entries of the probe run into the hole
+    // so lookups never need tombstones.
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (vals[i] == null) break;
+
+            int home = slot(keys[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                keys[hole] = keys[i];
+                vals[hole] = vals[i];
+                hole = i;
+            }
+        }
+        vals[hole] = null;
+    }
+
+    private void grow() {
+        long[] ok = keys;
+        Object[] ov = vals;
+
+        keys = new long[ok.length * 2];
+        vals = new Object[ov.length * 2];
+        mask = keys.length - 1;
+
+        for (int j = 0; j < ok.length; j++) {
+            if (ov[j] == null) continue;
+            int i = slot(ok[j]);
+            while (vals[i] != null) i = (i + 1) & mask;
+            keys[i] = ok[j];
+            vals[i] = ov[j];
+        }
+    }
+
+    private int slot(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
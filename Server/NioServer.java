@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector-based engine: a few event-loop threads serve every connection
+// instead of one blocking thread each. Framing and replies match
+// ClientHandler byte for byte (same charset, same line separator).
+public class NioServer {
+
+    private static final int BUF = 16 * 1024;
+    private static final Charset CS = Charset.defaultCharset();
+
+    private final int port;
+    private final Board board;
+    private final Admission adm;
+    private final Loop[] loops;
+
+    public NioServer(int port, Board board, int nloops, Admission adm) {
+        this.port = port;
+        this.board = board;
+        this.adm = adm;
+        this.loops = new Loop[Math.max(1, nloops)];
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+            Thread t = new Thread(loops[i], "bboard-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(port));
+
+            int next = 0;
+            while (true) {
+                SocketChannel ch = ss.accept();
+                if (!adm.enter()) {
+                    adm.reject(ch);
+                    continue;
+                }
+                adm.admitted();
+
+                loops[next].hand(ch);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private final class Loop implements Runnable {
+
+        private final Selector sel;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        // connections whose Watch has events waiting, or whose held replies the log now covers
+        private final Queue<Conn> woken = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer rd = ByteBuffer.allocateDirect(BUF);
+
+        Loop() throws IOException {
+            sel = Selector.open();
+        }
+
+        void hand(SocketChannel ch) {
+            incoming.add(ch);
+            sel.wakeup();
+        }
+
+        void wake(Conn c) {
+            woken.add(c);
+            sel.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    sel.select();
+                    register();
+
+                    Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+
+                        Conn c = (Conn) k.attachment();
+                        try {
+                            if (k.isValid() && k.isReadable()) c.read(rd);
+                            if (k.isValid() && k.isWritable()) c.flush();
+                        } catch (IOException e) {
+                            // client drop / socket died
+                            c.close();
+                        } catch (RuntimeException e) {
+                            drop(c, e);
+                        }
+                    }
+
+                    Conn c;
+                    while ((c = woken.poll()) != null) {
+                        try {
+                            c.woke();
+                        } catch (RuntimeException e) {
+                            drop(c, e);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Event loop error: " + e);
+                }
+            }
+        }
+
+        // A bug in handling one connection costs that connection, not the
+        // loop and everyone else on it.
+        private void drop(Conn c, RuntimeException e) {
+            System.err.println("Closing connection after unexpected error: " + e);
+            c.close();
+        }
+
+        private void register() {
+            SocketChannel ch;
+            while ((ch = incoming.poll()) != null) {
+                Conn c = null;
+                try {
+                    ch.configureBlocking(false);
+                    SelectionKey k = ch.register(sel, SelectionKey.OP_READ);
+                    c = new Conn(this, ch, k);
+                    k.attach(c);
+                    Protocol.hello(board, c.reply);
+                    c.reply.flush();
+                    c.flush();
+                } catch (IOException e) {
+                    if (c != null) {
+                        c.close();
+                    } else {
+                        try { ch.close(); } catch (IOException ignored) { }
+                        adm.leave();
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Conn {
+
+        private final Loop loop;
+        private final SocketChannel ch;
+        private final SelectionKey key;
+        private final Session ses;
+        private final Runnable wake;
+
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUF);
+        private final Queue<ByteBuffer> spill = new ArrayDeque<>();
+
+        // responses are encoded straight into out (and spill once it fills)
+        final Reply reply = new Reply(new OutputStream() {
+            @Override
+            public void write(int b) {
+                put(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int n) {
+                put(b, off, n);
+            }
+        }, CS, System.lineSeparator());
+
+        private byte[] line = new byte[256];
+        private int len;
+        // input read but not handled yet, while replies were backed up
+        private ByteBuffer held;
+        private boolean afterCr;
+
+        // Bin frame being read after PROTO BINARY: length varint, then want body bytes into line
+        private int want = -1;
+        private int flen, shift;
+
+        // output waits until the log is on disk up to mark, the log position
+        // when it was written; parked while the log's thread owes us a wake
+        private long mark;
+        private boolean parked;
+
+        private boolean closing;
+        private boolean closed;
+
+        Conn(Loop loop, SocketChannel ch, SelectionKey key) {
+            this.loop = loop;
+            this.ch = ch;
+            this.key = key;
+            this.wake = () -> loop.wake(this);
+            this.ses = new Session(board, wake);
+        }
+
+        void read(ByteBuffer rd) throws IOException {
+            // held input goes first (flush() gets to it once replies drain)
+            if (held != null && held.hasRemaining()) {
+                flush();
+                return;
+            }
+            rd.clear();
+            int n = ch.read(rd);
+            if (n < 0) {
+                // like BufferedReader.readLine, a trailing unterminated line still counts
+                if (len > 0 && !reply.binary()) onLine();
+                closing = true;
+                flush();
+                return;
+            }
+
+            rd.flip();
+            take(rd);
+            flush();
+        }
+
+        // Handles the input in in, stopping once replies back up past out:
+        // a read full of pipelined GETs then holds one reply in spill, not
+        // one per line. The rest waits in held until flush() has drained it.
+        private void take(ByteBuffer in) {
+            while (in.hasRemaining() && !closing) {
+                if (!spill.isEmpty()) {
+                    if (in != held) {
+                        // read() leaves held alone until it's empty
+                        if (held == null) held = ByteBuffer.allocate(BUF);
+                        held.clear();
+                        held.put(in);
+                        held.flip();
+                    }
+                    return;
+                }
+                byte b = in.get();
+
+                if (afterCr) {
+                    afterCr = false;
+                    if (b == '\n') continue;
+                }
+
+                if (reply.binary()) {
+                    frameByte(b);
+                } else if (b == '\n' || b == '\r') {
+                    afterCr = b == '\r';
+                    onLine();
+                } else {
+                    if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                    line[len++] = b;
+                }
+            }
+        }
+
+        private void onLine() {
+            String s = new String(line, 0, len, CS);
+            len = 0;
+
+            if (ses.handle(s, reply)) closing = true;
+            reply.flush();
+        }
+
+        private void frameByte(byte b) {
+            if (want >= 0) {
+                // grown as the body arrives, not to whatever length the client claims
+                if (len == line.length) line = Arrays.copyOf(line, Math.min(want, len * 2));
+                line[len++] = b;
+                if (len == want) onFrame();
+                return;
+            }
+
+            flen |= (b & 0x7f) << shift;
+            if (b < 0) {
+                shift += 7;
+                if (shift > 28) closing = true;
+                return;
+            }
+
+            int n = flen;
+            flen = shift = 0;
+            if (n < 0 || n > Bin.MAX_FRAME) {
+                closing = true;
+                return;
+            }
+            want = n;
+            if (want == 0) onFrame();
+        }
+
+        private void onFrame() {
+            int n = want;
+            want = -1;
+            len = 0;
+
+            if (ses.frame(line, n, reply)) closing = true;
+            reply.flush();
+        }
+
+        void woke() {
+            if (closed) return;
+            parked = false;
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            pushEvents();
+        }
+
+        // Sends waiting WATCH events, unless earlier output is still backed up;
+        // then they stay in the Watch (which turns into RESYNC if it overflows)
+        // until flush() finds the connection drained.
+        void pushEvents() {
+            if (closed || closing || out.position() > 0 || !spill.isEmpty()) return;
+            if (!ses.events(reply)) return;
+
+            reply.flush();
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // b is the encoder's scratch buffer, so anything kept past this call is copied
+        private void put(byte[] b, int off, int n) {
+            mark = board.logMark();
+            if (spill.isEmpty()) {
+                int k = Math.min(n, out.remaining());
+                out.put(b, off, k);
+                off += k;
+                n -= k;
+            }
+            if (n > 0) spill.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + n)));
+        }
+
+        void flush() throws IOException {
+            boolean pending;
+            while (true) {
+                if (parked) return;
+                if (!board.logged(mark, wake)) {
+                    parked = true;
+                    key.interestOps(0);
+                    return;
+                }
+
+                out.flip();
+                ch.write(out);
+                out.compact();
+
+                while (out.position() == 0 && !spill.isEmpty()) {
+                    ByteBuffer b = spill.peek();
+                    ch.write(b);
+                    if (b.hasRemaining()) break;
+                    spill.poll();
+                }
+
+                pending = out.position() > 0 || !spill.isEmpty();
+                // drained: carry on with input held back earlier, before reading more
+                if (pending || closing || held == null || !held.hasRemaining()) break;
+                take(held);
+            }
+            if (!pending && closing) {
+                close();
+                return;
+            }
+            if (!pending && ses.watch() != null && ses.watch().pending()) loop.woken.add(this);
+
+            // stop reading while replies back up, so a slow reader can't make us buffer forever
+            key.interestOps(pending ? SelectionKey.OP_WRITE : (closing ? 0 : SelectionKey.OP_READ));
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            adm.leave();
+            ses.close();
+
+            key.cancel();
+            try { ch.close(); } catch (IOException e) { }
+        }
+    }
+}
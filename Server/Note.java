@@ -1,41 +1,39 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// What a pin holds on to for a note. The note itself (position, color,
+// message) lives in its generation's NoteCols; a handle only exists once
+// something has to point at the note, which keeps the common unpinned note
+// down to its column entries. It survives SHAKE, which moves pinned notes
+// into a new generation and updates their slot.
 public class Note {
 
-    private final int x, y;
-    private final int w, h;
-    private final String color;
-    private final String msg;
+    // pins holding this note, null while there are none
+    private List<Pin> pins;
+    private int slot;
 
-    private int pinCount = 0;
-
-    public Note(int x, int y, int w, int h, String color, String msg) {
-        this.x = x;
-        this.y = y;
-        this.w = w;
-        this.h = h;
-        this.color = color;
-        this.msg = msg;
-    }
-
-    public boolean contains(int px, int py) {
-        return px >= x && px < (x + w) && py >= y && py < (y + h);
+    public Note(int slot) {
+        this.slot = slot;
     }
 
     public boolean isPinned() {
-        return pinCount > 0;
+        return pins != null;
     }
 
-    public void addPin() {
-        pinCount++;
+    // Called by Pin, which keeps the other side of this in step.
+    void addPin(Pin p) {
+        if (pins == null) pins = new ArrayList<>(2);
+        pins.add(p);
     }
 
-    public void removePin() {
-        if (pinCount > 0) pinCount--;
+    void removePin(Pin p) {
+        if (pins == null) return;
+        pins.remove(p);
+        if (pins.isEmpty()) pins = null;
     }
 
-    public int getX() { return x; }
-    public int getY() { return y; }
-    public int getW() { return w; }
-    public int getH() { return h; }
-    public String getColor() { return color; }
-    public String getMsg() { return msg; }
+    // Position in the board's current generation. Like the pins above, this
+    // is writer state: only read or changed under the board lock.
+    public int getSlot() { return slot; }
+    public void setSlot(int slot) { this.slot = slot; }
 }
@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+// A generation's notes as parallel columns instead of one object each:
+// position and color ordinal in primitive arrays that GET filters scan
+// straight through, message text (and its lowercase form for ref=) in a
+// separate store that is only touched when a note passes the cheap tests.
+//
+// Appended by one writer and read without locks like Seq: the arrays are
+// grown into a new Cols and published before size, so a reader that took
+// a count from a Snap and then calls cols() sees every slot below it.
+public final class NoteCols {
+
+    public static final class Cols {
+        public final int[] x, y;
+        public final byte[] ci; // color ordinal, read as ci[i] & 0xff
+        public final String[] msg, low;
+
+        Cols(int cap) {
+            x = new int[cap];
+            y = new int[cap];
+            ci = new byte[cap];
+            msg = new String[cap];
+            low = new String[cap];
+        }
+
+        Cols(Cols c, int cap) {
+            x = Arrays.copyOf(c.x, cap);
+            y = Arrays.copyOf(c.y, cap);
+            ci = Arrays.copyOf(c.ci, cap);
+            msg = Arrays.copyOf(c.msg, cap);
+            low = Arrays.copyOf(c.low, cap);
+        }
+    }
+
+    private volatile Cols c = new Cols(16);
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    public Cols cols() {
+        return c;
+    }
+
+    // Writer only. Returns the slot.
+    public int add(int x, int y, int ci, String msg, String low) {
+        Cols a = c;
+        int s = size;
+        if (s == a.x.length) a = new Cols(a, s * 2);
+        a.x[s] = x;
+        a.y[s] = y;
+        a.ci[s] = (byte) ci;
+        a.msg[s] = msg;
+        a.low[s] = low;
+        c = a;
+        size = s + 1;
+        return s;
+    }
+}
@@ -0,0 +1,45 @@
+// One parsed write command (POST, PIN or UNPIN), as collected by BATCH.
+public class Op {
+
+    public static final int POST = 0;
+    public static final int PIN = 1;
+    public static final int UNPIN = 2;
+    public static final int BAD = 3;
+
+    public final int kind;
+    public final int x, y;
+    public final int ci;      // color ordinal, -1 if the name isn't configured
+    public final String col;  // that name, kept only for the error when ci is -1
+    public final String msg;  // for BAD, why
+
+    private Op(int kind, int x, int y, int ci, String col, String msg) {
+        this.kind = kind;
+        this.x = x;
+        this.y = y;
+        this.ci = ci;
+        this.col = col;
+        this.msg = msg;
+    }
+
+    public static Op post(int x, int y, int ci, String msg) {
+        return new Op(POST, x, y, ci, null, msg);
+    }
+
+    // A POST naming a color that isn't configured; BATCH reports it in turn.
+    public static Op badColor(int x, int y, String col, String msg) {
+        return new Op(POST, x, y, -1, col, msg);
+    }
+
+    // A body line or frame BATCH can't take; the batch fails with why, at its position.
+    public static Op bad(String why) {
+        return new Op(BAD, 0, 0, -1, null, why);
+    }
+
+    public static Op pin(int x, int y) {
+        return new Op(PIN, x, y, -1, null, null);
+    }
+
+    public static Op unpin(int x, int y) {
+        return new Op(UNPIN, x, y, -1, null, null);
+    }
+}
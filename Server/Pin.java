@@ -1,10 +1,17 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 public class Pin {
 
     private final int x, y;
-    private final List<Note> notes = new ArrayList<>();
+    // Note keeps the reverse side (the pins holding it), so membership
+    // checks here and "who holds this note" there are both O(1)-ish
+    private final Set<Note> notes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int idx; // position in the board's PinList, writer state
 
     public Pin(int x, int y) {
         this.x = x;
@@ -13,25 +20,23 @@ public class Pin {
 
     public int getX() { return x; }
     public int getY() { return y; }
+    public int getIdx() { return idx; }
+    public void setIdx(int idx) { this.idx = idx; }
 
     public boolean isEmpty() {
         return notes.isEmpty();
     }
 
     public void addIfMissing(Note n) {
-        if (notes.contains(n)) return;
-        notes.add(n);
-        n.addPin();
+        if (notes.add(n)) n.addPin(this);
     }
 
-    public void removeAll() {
-        for (Note n : notes) n.removePin();
+    // Detaches every note and returns them, so the caller can see which
+    // ones are no longer pinned at all.
+    public List<Note> removeAll() {
+        List<Note> out = new ArrayList<>(notes);
+        for (Note n : out) n.removePin(this);
         notes.clear();
-    }
-
-    public void removeNotes(List<Note> gone) {
-        for (Note n : gone) {
-            if (notes.remove(n)) n.removePin();
-        }
+        return out;
     }
 }
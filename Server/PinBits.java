@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Immutable set of pinned note slots. A change copies only the chunk
+// directory and the 4096-slot chunk it touches, so every published view
+// keeps the PINNED flags it was built with.
+public final class PinBits {
+
+    private static final int SHIFT = 12;
+    private static final int WORDS = 1 << (SHIFT - 6);
+
+    public static final PinBits EMPTY = new PinBits(new long[0][]);
+
+    private final long[][] chunks;
+
+    private PinBits(long[][] chunks) {
+        this.chunks = chunks;
+    }
+
+    // Slots [0, n) all set; used when SHAKE leaves only pinned notes behind.
+    public static PinBits firstN(int n) {
+        long[][] ch = new long[(n + (1 << SHIFT) - 1) >>> SHIFT][];
+        for (int c = 0; c < ch.length; c++) {
+            ch[c] = new long[WORDS];
+            for (int w = 0; w < WORDS; w++) {
+                int base = (c << SHIFT) + (w << 6);
+                int left = n - base;
+                if (left <= 0) break;
+                ch[c][w] = left >= 64 ? -1L : (1L << left) - 1;
+            }
+        }
+        return new PinBits(ch);
+    }
+
+    // Exactly the slots set in b.
+    public static PinBits of(BitSet b) {
+        long[] words = b.toLongArray();
+        long[][] ch = new long[(words.length + WORDS - 1) / WORDS][];
+        for (int c = 0; c < ch.length; c++) {
+            ch[c] = Arrays.copyOfRange(words, c * WORDS, (c + 1) * WORDS);
+        }
+        return new PinBits(ch);
+    }
+
+    public boolean get(int slot) {
+        int c = slot >>> SHIFT;
+        if (c >= chunks.length || chunks[c] == null) return false;
+        return (chunks[c][(slot >>> 6) & (WORDS - 1)] & (1L << slot)) != 0;
+    }
+
+    public PinBits with(int slot, boolean on) {
+        if (get(slot) == on) return this;
+
+        int c = slot >>> SHIFT;
+        long[][] ch = Arrays.copyOf(chunks, Math.max(chunks.length, c + 1));
+        long[] words = ch[c] == null ? new long[WORDS] : ch[c].clone();
+
+        int w = (slot >>> 6) & (WORDS - 1);
+        if (on) words[w] |= 1L << slot;
+        else words[w] &= ~(1L << slot);
+
+        ch[c] = words;
+        return new PinBits(ch);
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Immutable list of live pins, in the order they were put in. Pins are
+// appended to a shared Seq and removed by marking their index dead, so
+// PIN and UNPIN cost O(1) (plus one PinBits chunk) instead of copying
+// every pin into a new array for the next Snap. Once most of the Seq is
+// dead it is compacted into a fresh one; older lists keep the old Seq.
+public final class PinList {
+
+    private final Seq<Pin> seq;
+    private final int end;
+    private final PinBits dead;
+    private final int live;
+
+    // Each board (and each CLEAR) starts its own: lists share their Seq with
+    // the lists derived from them, and only the newest may append to it.
+    public static PinList empty() {
+        return new PinList(new Seq<>(), 0, PinBits.EMPTY, 0);
+    }
+
+    private PinList(Seq<Pin> seq, int end, PinBits dead, int live) {
+        this.seq = seq;
+        this.end = end;
+        this.dead = dead;
+        this.live = live;
+    }
+
+    public int size() {
+        return live;
+    }
+
+    // Writer only (board lock held), like everything that changes Pin.
+    public PinList with(Pin p) {
+        p.setIdx(end);
+        seq.add(p);
+        return new PinList(seq, end + 1, dead, live + 1);
+    }
+
+    public PinList without(Pin p) {
+        if (live - 1 < end / 2 && end > 64) {
+            PinList out = empty();
+            for (int i = 0; i < end; i++) {
+                Pin q = seq.get(i);
+                if (i != p.getIdx() && !dead.get(i)) out = out.with(q);
+            }
+            return out;
+        }
+        return new PinList(seq, end, dead.with(p.getIdx(), true), live - 1);
+    }
+
+    public List<Pin> list() {
+        List<Pin> out = new ArrayList<>(live);
+        for (int i = 0; i < end; i++) {
+            if (!dead.get(i)) out.add(seq.get(i));
+        }
+        return out;
+    }
+}
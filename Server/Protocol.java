@@ -1,3 +1,5 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 public class Protocol {
@@ -8,6 +10,13 @@ public class Protocol {
     private static final String OK_PIN = "OK PINNED";
     private static final String OK_UNP = "OK UNPINNED";
     private static final String OK_POST = "OK NOTE_POSTED";
+    private static final String OK_BAT = "OK BATCHED";
+    private static final String OK_PROTO = "OK PROTO " + Bin.PROTO;
+    private static final String OK_ZIP_ON = "OK COMPRESS ON";
+    private static final String OK_ZIP_OFF = "OK COMPRESS OFF";
+    public static final String OK_WATCH = "OK WATCHING";
+    public static final String OK_UNWATCH = "OK UNWATCHED";
+    public static final String WATCH_BUSY = "ERROR SERVER_BUSY No worker free to push events, try again later";
 
     private static final String E_FMT = "ERROR INVALID_FORMAT";
     private static final String E_OOB = "ERROR OUT_OF_BOUNDS";
@@ -15,172 +24,610 @@ public class Protocol {
     private static final String E_OVR = "ERROR COMPLETE_OVERLAP";
     private static final String E_NON = "ERROR NO_NOTE_AT_COORDINATE";
     private static final String E_PNF = "ERROR PIN_NOT_FOUND";
+    private static final String E_FRAME = "ERROR INVALID_FORMAT Bad frame";
+    private static final String E_STALE = "ERROR STALE_CURSOR";
+    private static final String NO_BREAKS = "POST message must not contain line breaks";
+
+    public static final int MAX_BATCH = 100000;
+    // longest note or pin list GetCache is offered
+    private static final int CACHE_MAX = 20000;
+
+    // sessionCmd() results other than a batch count
+    public static final int S_WATCH = -1;
+    public static final int S_UNWATCH = -2;
+
+    // A parsed POST/PIN/UNPIN, or the INVALID_FORMAT message explaining why not.
+    private static class Parsed {
+        final Op op;
+        final String bad;
+
+        Parsed(Op op, String bad) {
+            this.op = op;
+            this.bad = bad;
+        }
+    }
 
+    private static final int C_UNKNOWN = 0;
+    private static final int C_DISCONNECT = 1;
+    private static final int C_CLEAR = 2;
+    private static final int C_SHAKE = 3;
+    private static final int C_PIN = 4;
+    private static final int C_UNPIN = 5;
+    private static final int C_BATCH = 6;
+    private static final int C_STATS = 7;
+    private static final int C_POST = 8;
+    private static final int C_GET = 9;
+    private static final int C_PROTO = 10;
+    private static final int C_COMPRESS = 11;
+    private static final int C_WATCH = 12;
+    private static final int C_UNWATCH = 13;
+
+    // The whole response as one String, lines joined with "\n".
     public static String handle(String line, Board board) {
-        if (line == null) return err(E_FMT, "Invalid request");
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Reply r = Reply.collect(buf);
+        handle(line, board, new Lexer(), r);
+        r.flush();
 
-        String t = line.trim();
-        if (t.isEmpty()) return err(E_FMT, "Invalid request");
+        String s = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+        return s.substring(0, s.length() - 1);
+    }
 
-        String[] parts = t.split("\\s+");
-        String cmd = parts[0];
+    // Writes the response to out; true if the connection should close now.
+    // lx is scratch space, reused across calls by the owning connection.
+    public static boolean handle(String line, Board board, Lexer lx, Reply out) {
+        String resp = answer(line, board, lx, out);
+        if (resp == null) return false; // already streamed
 
-        if (cmd.equals("DISCONNECT")) {
-            if (parts.length != 1) return err(E_FMT, "DISCONNECT takes no parameters");
-            return OK_DIS;
-        }
+        out.line(resp);
+        return shouldClose(resp);
+    }
 
-        if (cmd.equals("CLEAR")) {
-            if (parts.length != 1) return err(E_FMT, "CLEAR takes no parameters");
-            board.clear();
-            return OK_CLR;
-        }
+    // Single-line responses come back as a String; a successful GET (or
+    // PROTO) writes into out itself and returns null.
+    private static String answer(String line, Board board, Lexer lx, Reply out) {
+        if (line == null) return err(E_FMT, "Invalid request");
+
+        lx.reset(line);
+        if (lx.count() == 0) return err(E_FMT, "Invalid request");
+
+        int n = lx.count();
+        String bad;
+
+        switch (command(lx)) {
+            case C_DISCONNECT:
+                if (n != 1) return err(E_FMT, "DISCONNECT takes no parameters");
+                return OK_DIS;
+
+            case C_CLEAR:
+                if (n != 1) return err(E_FMT, "CLEAR takes no parameters");
+                board.clear();
+                return OK_CLR;
+
+            case C_SHAKE:
+                if (n != 1) return err(E_FMT, "SHAKE takes no parameters");
+                board.shake();
+                return OK_SHK;
+
+            case C_PIN:
+                if ((bad = badXY(lx, "PIN")) != null) return err(E_FMT, bad);
+                if (!board.pinAt((int) lx.num(1, 0), (int) lx.num(2, 0))) {
+                    return err(E_NON, "No note contains the given point");
+                }
+                return OK_PIN;
+
+            case C_UNPIN:
+                if ((bad = badXY(lx, "UNPIN")) != null) return err(E_FMT, bad);
+                if (!board.unpinAt((int) lx.num(1, 0), (int) lx.num(2, 0))) {
+                    return err(E_PNF, "No pin exists at the given coordinates");
+                }
+                return OK_UNP;
+
+            case C_BATCH:
+                // a well-formed header is picked up by Session before it gets here
+                if (n != 2) return err(E_FMT, "BATCH requires a command count");
+                return err(E_FMT, "BATCH count must be between 1 and " + MAX_BATCH);
+
+            case C_STATS:
+                if (n != 1) return err(E_FMT, "STATS takes no parameters");
+                return Stats.line();
+
+            case C_POST: {
+                if ((bad = badPost(lx)) != null) return err(E_FMT, bad);
+                int ci = board.colors().ord(lx, 3, 0);
+                if (ci < 0) return err(E_COL, lx.str(3) + " is not a valid color");
+                Board.PostRes r = board.post((int) lx.num(1, 0), (int) lx.num(2, 0), ci, lx.rest(4));
+                return r.ok ? OK_POST : resErr(r);
+            }
 
-        if (cmd.equals("SHAKE")) {
-            if (parts.length != 1) return err(E_FMT, "SHAKE takes no parameters");
-            board.shake();
-            return OK_SHK;
+            case C_GET:
+                return handleGet(lx, board, out);
+
+            case C_PROTO:
+                if (n != 2) return err(E_FMT, "PROTO requires a protocol name");
+                if (!lx.is(1, Bin.PROTO)) return err(E_FMT, "Unsupported protocol: " + lx.str(1));
+                // the OK still goes out as text, everything after it is binary
+                out.line(OK_PROTO);
+                out.toBinary();
+                return null;
+
+            case C_COMPRESS:
+                if (n == 2 && lx.is(1, "ON")) {
+                    out.compress(zipDict(board));
+                    return OK_ZIP_ON;
+                }
+                if (n == 2 && lx.is(1, "OFF")) {
+                    out.compress(null);
+                    return OK_ZIP_OFF;
+                }
+                return err(E_FMT, "COMPRESS takes ON or OFF");
+
+            case C_WATCH:
+            case C_UNWATCH:
+                // the well-formed ones are Session's
+                if (n != 1) return err(E_FMT, lx.str(0) + " takes no parameters");
+                return err(E_FMT, lx.str(0) + " needs a live connection");
+
+            default:
+                return err(E_FMT, "Unknown command");
         }
+    }
 
-        if (cmd.equals("PIN")) {
-            if (parts.length != 3) return err(E_FMT, "PIN requires x and y");
-            Integer x = toInt(parts[1]);
-            Integer y = toInt(parts[2]);
-            if (x == null || y == null) return err(E_FMT, "PIN requires integer coordinates");
+    // The three handshake lines every client gets on connect.
+    public static void hello(Board board, Reply out) {
+        out.put("BOARD ").put(board.getBoardW()).put(' ').put(board.getBoardH()).end();
+        out.put("NOTE ").put(board.getNoteW()).put(' ').put(board.getNoteH()).end();
+        out.line(board.colors().line());
+    }
 
-            if (!board.pinAt(x, y)) return err(E_NON, "No note contains the given point");
-            return OK_PIN;
-        }
+    public static boolean shouldClose(String resp) {
+        return OK_DIS.equals(resp);
+    }
 
-        if (cmd.equals("UNPIN")) {
-            if (parts.length != 3) return err(E_FMT, "UNPIN requires x and y");
-            Integer x = toInt(parts[1]);
-            Integer y = toInt(parts[2]);
-            if (x == null || y == null) return err(E_FMT, "UNPIN requires integer coordinates");
+    // The commands Session answers itself: n if line is a valid "BATCH <n>"
+    // header, S_WATCH / S_UNWATCH for a bare WATCH / UNWATCH, 0 otherwise.
+    public static int sessionCmd(String line, Lexer lx) {
+        if (line == null) return 0;
 
-            if (!board.unpinAt(x, y)) return err(E_PNF, "No pin exists at the given coordinates");
-            return OK_UNP;
+        lx.reset(line);
+        if (lx.count() == 1) {
+            if (lx.is(0, "WATCH")) return S_WATCH;
+            if (lx.is(0, "UNWATCH")) return S_UNWATCH;
+            return 0;
         }
+        if (lx.count() != 2 || !lx.is(0, "BATCH")) return 0;
 
-        if (cmd.equals("POST")) {
-            return handlePost(t, board);
-        }
+        long n = lx.num(1, 0);
+        if (n < 1 || n > MAX_BATCH) return 0;
+        return (int) n;
+    }
 
-        if (cmd.equals("GET")) {
-            return handleGet(parts, board);
+    // Answers a whole BATCH body at once: "OK BATCHED <n>" if every command
+    // applied, otherwise the first error (naming the command) and no changes.
+    public static String handleBatch(List<Op> ops, Board board) {
+        for (int i = 0; i < ops.size(); i++) {
+            Op op = ops.get(i);
+            if (op.kind == Op.BAD) return err(E_FMT, at(i) + op.msg);
         }
 
-        return err(E_FMT, "Unknown command");
+        Board.PostRes r = board.batch(ops);
+        return r.ok ? OK_BAT + " " + ops.size() : resErr(r);
     }
 
-    public static boolean shouldClose(String resp) {
-        return OK_DIS.equals(resp);
+    // One BATCH body line, parsed as it arrives.
+    public static Op batchOp(String line, Lexer lx, Colors colors) {
+        lx.reset(line == null ? "" : line);
+        if (lx.count() == 0) return Op.bad("Invalid request");
+
+        Parsed p = parseOp(lx, colors);
+        return p.bad != null ? Op.bad(p.bad) : p.op;
+    }
+
+    private static String at(int i) {
+        return "Command " + (i + 1) + ": ";
     }
 
-    private static String handlePost(String full, Board board) {
-        // POST <x> <y> <color> <message...>
-        String[] a = full.split("\\s+", 5);
-        if (a.length < 5) return err(E_FMT, "POST requires coordinates, color, and message");
+    private static Parsed parseOp(Lexer lx, Colors colors) {
+        String bad;
+        switch (command(lx)) {
+            case C_POST: {
+                if ((bad = badPost(lx)) != null) return bad(bad);
+                int x = (int) lx.num(1, 0), y = (int) lx.num(2, 0);
+                int ci = colors.ord(lx, 3, 0);
+                if (ci < 0) return new Parsed(Op.badColor(x, y, lx.str(3), lx.rest(4)), null);
+                return new Parsed(Op.post(x, y, ci, lx.rest(4)), null);
+            }
 
-        Integer x = toInt(a[1]);
-        Integer y = toInt(a[2]);
-        if (x == null || y == null) return err(E_FMT, "POST requires integer coordinates");
+            case C_PIN:
+                if ((bad = badXY(lx, "PIN")) != null) return bad(bad);
+                return new Parsed(Op.pin((int) lx.num(1, 0), (int) lx.num(2, 0)), null);
 
-        String col = a[3];
-        String msg = a[4];
-        if (msg.trim().isEmpty()) return err(E_FMT, "POST requires coordinates, color, and message");
+            case C_UNPIN:
+                if ((bad = badXY(lx, "UNPIN")) != null) return bad(bad);
+                return new Parsed(Op.unpin((int) lx.num(1, 0), (int) lx.num(2, 0)), null);
 
-        Board.PostRes r = board.post(x, y, col, msg);
-        if (r.ok) return OK_POST;
+            default:
+                return bad("BATCH only takes POST, PIN and UNPIN");
+        }
+    }
 
+    // PIN / UNPIN <x> <y>
+    private static String badXY(Lexer lx, String cmd) {
+        if (lx.count() != 3) return cmd + " requires x and y";
+        if (lx.num(1, 0) == Lexer.BAD || lx.num(2, 0) == Lexer.BAD) return cmd + " requires integer coordinates";
+        return null;
+    }
+
+    // POST <x> <y> <color> <message...>
+    private static String badPost(Lexer lx) {
+        if (lx.count() < 5) return "POST requires coordinates, color, and message";
+        if (lx.num(1, 0) == Lexer.BAD || lx.num(2, 0) == Lexer.BAD) return "POST requires integer coordinates";
+        if (lx.blankFrom(4)) return "POST requires coordinates, color, and message";
+        // only reachable through a binary frame; stored, it would split a text reply
+        if (lx.breakFrom(4)) return NO_BREAKS;
+        return null;
+    }
+
+    public static boolean hasBreak(String s) {
+        return s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
+    }
+
+    private static int command(Lexer lx) {
+        switch (lx.len(0)) {
+            case 3:
+                if (lx.is(0, "GET")) return C_GET;
+                if (lx.is(0, "PIN")) return C_PIN;
+                break;
+            case 4:
+                if (lx.is(0, "POST")) return C_POST;
+                break;
+            case 5:
+                switch (lx.charAt(0, 0)) {
+                    case 'U': if (lx.is(0, "UNPIN")) return C_UNPIN; break;
+                    case 'W': if (lx.is(0, "WATCH")) return C_WATCH; break;
+                    case 'S':
+                        if (lx.is(0, "SHAKE")) return C_SHAKE;
+                        if (lx.is(0, "STATS")) return C_STATS;
+                        break;
+                    case 'C': if (lx.is(0, "CLEAR")) return C_CLEAR; break;
+                    case 'B': if (lx.is(0, "BATCH")) return C_BATCH; break;
+                    case 'P': if (lx.is(0, "PROTO")) return C_PROTO; break;
+                    default: break;
+                }
+                break;
+            case 7:
+                if (lx.is(0, "UNWATCH")) return C_UNWATCH;
+                break;
+            case 8:
+                if (lx.is(0, "COMPRESS")) return C_COMPRESS;
+                break;
+            case 10:
+                if (lx.is(0, "DISCONNECT")) return C_DISCONNECT;
+                break;
+            default:
+                break;
+        }
+        return C_UNKNOWN;
+    }
+
+    private static Parsed bad(String msg) {
+        return new Parsed(null, msg);
+    }
+
+    private static String resErr(Board.PostRes r) {
         if (r.code.equals("OUT_OF_BOUNDS")) return err(E_OOB, r.msg);
         if (r.code.equals("COLOR_NOT_SUPPORTED")) return err(E_COL, r.msg);
         if (r.code.equals("COMPLETE_OVERLAP")) return err(E_OVR, r.msg);
+        if (r.code.equals("NO_NOTE_AT_COORDINATE")) return err(E_NON, r.msg);
+        if (r.code.equals("PIN_NOT_FOUND")) return err(E_PNF, r.msg);
 
         return err("ERROR " + r.code, r.msg);
     }
 
-    private static String handleGet(String[] parts, Board board) {
+    // An error line, or null once the result has been streamed into out.
+    private static String handleGet(Lexer lx, Board board, Reply out) {
+        int count = lx.count();
+
         // GET PINS
-        if (parts.length == 2 && parts[1].equals("PINS")) {
-            List<Pin> pins = board.pinsSnap();
-            StringBuilder sb = new StringBuilder();
-            sb.append("OK ").append(pins.size());
-            for (Pin p : pins) {
-                sb.append("\nPIN ").append(p.getX()).append(" ").append(p.getY());
-            }
-            return sb.toString();
+        if (count == 2 && lx.is(1, "PINS")) {
+            return getPins(board, out);
         }
 
-        String col = null;
+        int col = -1; // token holding color=, if any
         Integer cx = null, cy = null;
         String ref = null;
-
-        int i = 1;
-        while (i < parts.length) {
-            String tok = parts[i];
-
-            if (tok.startsWith("color=")) {
-                if (col != null) return err(E_FMT, "Duplicate color filter");
-                col = tok.substring("color=".length());
-                if (col.isEmpty()) return err(E_FMT, "color filter must not be empty");
+        int limit = 0;
+        String after = null;
+
+        // GET COUNT <filters> answers "OK COUNT <n>" without listing anything
+        boolean countOnly = count >= 2 && lx.is(1, "COUNT");
+
+        int i = countOnly ? 2 : 1;
+        while (i < count) {
+            if (lx.startsWith(i, "color=")) {
+                if (col >= 0) return err(E_FMT, "Duplicate color filter");
+                col = i;
+                if (lx.len(i) == "color=".length()) return err(E_FMT, "color filter must not be empty");
                 i++;
                 continue;
             }
 
-            if (tok.startsWith("contains=")) {
+            if (lx.startsWith(i, "contains=")) {
                 if (cx != null || cy != null) return err(E_FMT, "Duplicate contains filter");
 
-                String xStr = tok.substring("contains=".length());
-                if (xStr.isEmpty()) return err(E_FMT, "contains requires x and y");
-                if (i + 1 >= parts.length) return err(E_FMT, "contains requires x and y");
+                int off = "contains=".length();
+                if (lx.len(i) == off) return err(E_FMT, "contains requires x and y");
+                if (i + 1 >= count) return err(E_FMT, "contains requires x and y");
 
-                Integer x = toInt(xStr);
-                Integer y = toInt(parts[i + 1]);
-                if (x == null || y == null) return err(E_FMT, "contains requires integer coordinates");
+                long x = lx.num(i, off);
+                long y = lx.num(i + 1, 0);
+                if (x == Lexer.BAD || y == Lexer.BAD) return err(E_FMT, "contains requires integer coordinates");
 
-                cx = x;
-                cy = y;
+                cx = (int) x;
+                cy = (int) y;
                 i += 2;
                 continue;
             }
 
-            if (tok.startsWith("refersTo=")) {
+            if (lx.startsWith(i, "refersTo=")) {
                 if (ref != null) return err(E_FMT, "Duplicate refersTo filter");
-                ref = tok.substring("refersTo=".length());
+                ref = lx.str(i, "refersTo=".length());
                 if (ref.isEmpty()) return err(E_FMT, "refersTo filter must not be empty");
                 i++;
                 continue;
             }
 
-            return err(E_FMT, "Unknown filter: " + tok);
+            if (lx.startsWith(i, "limit=")) {
+                if (limit != 0) return err(E_FMT, "Duplicate limit");
+                long v = lx.num(i, "limit=".length());
+                if (v == Lexer.BAD || v < 1) return err(E_FMT, "limit must be a positive integer");
+                limit = (int) v;
+                i++;
+                continue;
+            }
+
+            if (lx.startsWith(i, "after=")) {
+                if (after != null) return err(E_FMT, "Duplicate after");
+                after = lx.str(i, "after=".length());
+                if (after.isEmpty()) return err(E_FMT, "after must not be empty");
+                i++;
+                continue;
+            }
+
+            return err(E_FMT, "Unknown filter: " + lx.str(i));
+        }
+
+        int ci = col < 0 ? -1 : board.colors().ord(lx, col, "color=".length());
+        if (col >= 0 && ci < 0) {
+            return err(E_COL, lx.str(col, "color=".length()) + " is not a valid color");
         }
 
-        if (col != null && !board.colorOk(col)) {
-            return err(E_COL, col + " is not a valid color");
+        if (countOnly) {
+            if (limit != 0 || after != null) return err(E_FMT, "GET COUNT takes no limit or after");
+            return countOf(board, ci, cx, cy, ref);
         }
+        return get(board, ci, cx, cy, ref, limit, after, out);
+    }
+
+    private static String countOf(Board board, int ci, Integer cx, Integer cy, String ref) {
+        return "OK COUNT " + board.snap().countOf(ci, cx, cy, ref);
+    }
 
-        List<Note> hits = board.getNotes(col, cx, cy, ref);
+    // limit 0 means all. With a limit, a page that stops short of the last
+    // match carries the cursor to pass back as after= for the next one.
+    private static String get(Board board, int ci, Integer cx, Integer cy, String ref,
+                              int limit, String after, Reply out) {
+        Snap snap = board.snap();
+
+        int from = 0;
+        if (after != null) {
+            from = cursorSlot(snap, after);
+            if (from == -1) return err(E_FMT, "Bad cursor: " + after);
+            if (from == -2) return err(E_STALE, "Board was shaken or cleared since that cursor");
+        }
+
+        // same filters in the same wire form, same bytes
+        String key = field(out.form()) + " GET " + ci + " " + cx + " " + cy + " " + limit
+            + " " + field(after) + " " + field(ref);
+        Reply.Capture hit = board.gets().get(key, snap.version());
+        if (hit != null) {
+            out.cached(hit);
+            return null;
+        }
+
+        // one past the page tells whether there is a next one
+        int max = limit <= 0 || limit == Integer.MAX_VALUE ? Integer.MAX_VALUE : limit + 1;
+        int[] hits = snap.find(ci, cx, cy, ref, from, max);
+        int k = hits.length;
+        String next = null;
+        if (limit > 0 && k > limit) {
+            k = limit;
+            next = snap.genId() + "." + hits[limit];
+        }
+
+        // a big listing just streams out; anything else is copied on the way
+        if (k > CACHE_MAX) {
+            notes(board, snap, hits, k, next, out);
+            return null;
+        }
+        out.capture(GetCache.MAX_REPLY);
+        notes(board, snap, hits, k, next, out);
+        keep(board, key, snap, out);
+        return null;
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("OK ").append(hits.size());
-        for (Note n : hits) {
-            sb.append("\nNOTE ")
-              .append(n.getX()).append(" ")
-              .append(n.getY()).append(" ")
-              .append(n.getColor()).append(" ")
-              .append(n.getMsg())
-              .append(" PINNED=").append(n.isPinned() ? "true" : "false");
+    private static void notes(Board board, Snap snap, int[] hits, int k, String next, Reply out) {
+        NoteCols.Cols c = snap.cols();
+        Colors names = board.colors();
+        out.notes(k, next);
+        for (int j = 0; j < k; j++) {
+            int slot = hits[j];
+            int col = c.ci[slot] & 0xff;
+            out.note(c.x[slot], c.y[slot], col, names.name(col), c.msg[slot], snap.pinned(slot));
         }
-        return sb.toString();
+        out.endList();
     }
 
-    private static Integer toInt(String s) {
+    // Caches the list out just captured, unless it outgrew the capture.
+    private static void keep(Board board, String key, Snap snap, Reply out) {
+        Reply.Capture c = out.captured();
+        if (c != null) board.gets().put(key, snap.version(), c);
+    }
+
+    // A cache key part for a string that may hold anything, spaces included:
+    // length first, so no two sets of values run together into the same key.
+    private static String field(String s) {
+        return s == null ? "-" : s.length() + ":" + s;
+    }
+
+    // The slot a cursor resumes from; -1 if it isn't one, -2 if its generation is gone.
+    private static int cursorSlot(Snap snap, String c) {
+        int dot = c.indexOf('.');
+        if (dot < 0) return -1;
+
+        long id;
+        int slot;
         try {
-            return Integer.parseInt(s);
+            id = Long.parseLong(c.substring(0, dot));
+            slot = Integer.parseInt(c.substring(dot + 1));
         } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        if (slot < 0) return -1;
+        if (id != snap.genId()) return -2;
+        return slot > snap.count() ? -1 : slot;
+    }
+
+    private static String getPins(Board board, Reply out) {
+        Snap snap = board.snap();
+        String key = field(out.form()) + " PINS";
+        Reply.Capture hit = board.gets().get(key, snap.version());
+        if (hit != null) {
+            out.cached(hit);
+            return null;
+        }
+
+        List<Pin> pins = snap.pins();
+        if (pins.size() > CACHE_MAX) {
+            pins(pins, out);
             return null;
         }
+        out.capture(GetCache.MAX_REPLY);
+        pins(pins, out);
+        keep(board, key, snap, out);
+        return null;
+    }
+
+    private static void pins(List<Pin> pins, Reply out) {
+        out.pins(pins.size());
+        for (Pin p : pins) out.pin(p.getX(), p.getY());
+        out.endList();
+    }
+
+    // Deflate dictionary for COMPRESS ON: the text a note list repeats most,
+    // most common last. ClientConnection builds the same bytes from COLORS.
+    public static byte[] zipDict(Board board) {
+        StringBuilder sb = new StringBuilder("OK PIN ");
+        for (int i = 0; i < board.colors().size(); i++) {
+            sb.append(" PINNED=true\nNOTE 1 1 ").append(board.colors().name(i)).append(' ');
+        }
+        sb.append(" PINNED=false\nNOTE ");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A compact Bin request (anything but OP_TEXT), answered exactly like
+    // the text command it stands for. Fields are checked before anything runs.
+    public static void handleOp(int op, Bin.In f, Board board, Reply out) {
+        String resp = answerOp(op, f, board, out);
+        if (resp != null) out.line(resp);
+    }
+
+    private static String answerOp(int op, Bin.In f, Board board, Reply out) {
+        switch (op) {
+            case Bin.OP_POST: {
+                int x = f.zz(), y = f.zz(), ci = f.var();
+                String msg = f.str();
+                if (!whole(f) || !board.colors().has(ci)) return E_FRAME;
+                if (msg.trim().isEmpty()) return err(E_FMT, "POST requires coordinates, color, and message");
+                if (hasBreak(msg)) return err(E_FMT, NO_BREAKS);
+
+                Board.PostRes r = board.post(x, y, ci, msg);
+                return r.ok ? OK_POST : resErr(r);
+            }
+
+            case Bin.OP_PIN: {
+                int x = f.zz(), y = f.zz();
+                if (!whole(f)) return E_FRAME;
+                if (!board.pinAt(x, y)) return err(E_NON, "No note contains the given point");
+                return OK_PIN;
+            }
+
+            case Bin.OP_UNPIN: {
+                int x = f.zz(), y = f.zz();
+                if (!whole(f)) return E_FRAME;
+                if (!board.unpinAt(x, y)) return err(E_PNF, "No pin exists at the given coordinates");
+                return OK_UNP;
+            }
+
+            case Bin.OP_GET: {
+                int flags = f.u8();
+                int ci = (flags & Bin.F_COLOR) != 0 ? f.var() : -1;
+                Integer cx = null, cy = null;
+                if ((flags & Bin.F_CONTAINS) != 0) {
+                    cx = f.zz();
+                    cy = f.zz();
+                }
+                String ref = (flags & Bin.F_REF) != 0 ? f.str() : null;
+                int limit = (flags & Bin.F_LIMIT) != 0 ? f.var() : 0;
+                String after = (flags & Bin.F_AFTER) != 0 ? f.str() : null;
+
+                if (!whole(f) || ((flags & Bin.F_COLOR) != 0 && !board.colors().has(ci))) return E_FRAME;
+                if (ref != null && ref.isEmpty()) return err(E_FMT, "refersTo filter must not be empty");
+                if ((flags & Bin.F_LIMIT) != 0 && limit < 1) return err(E_FMT, "limit must be a positive integer");
+                if (after != null && after.isEmpty()) return err(E_FMT, "after must not be empty");
+
+                if ((flags & Bin.F_COUNT) != 0) {
+                    if (limit != 0 || after != null) return err(E_FMT, "GET COUNT takes no limit or after");
+                    return countOf(board, ci, cx, cy, ref);
+                }
+                return get(board, ci, cx, cy, ref, limit, after, out);
+            }
+
+            case Bin.OP_PINS:
+                if (!whole(f)) return E_FRAME;
+                return getPins(board, out);
+
+            default:
+                return E_FRAME;
+        }
+    }
+
+    // One compact BATCH body frame, checked as handleOp() would check it
+    // alone, so its message is stored exactly as it would be outside a batch.
+    public static Op batchOp(int op, Bin.In f, Colors colors) {
+        switch (op) {
+            case Bin.OP_POST: {
+                int x = f.zz(), y = f.zz(), ci = f.var();
+                String msg = f.str();
+                if (!whole(f) || !colors.has(ci)) return Op.bad("Bad frame");
+                if (msg.trim().isEmpty()) return Op.bad("POST requires coordinates, color, and message");
+                if (hasBreak(msg)) return Op.bad(NO_BREAKS);
+                return Op.post(x, y, ci, msg);
+            }
+            case Bin.OP_PIN:
+            case Bin.OP_UNPIN: {
+                int x = f.zz(), y = f.zz();
+                if (!whole(f)) return Op.bad("Bad frame");
+                return op == Bin.OP_PIN ? Op.pin(x, y) : Op.unpin(x, y);
+            }
+            default:
+                return Op.bad("BATCH only takes POST, PIN and UNPIN");
+        }
+    }
+
+    private static boolean whole(Bin.In f) {
+        return !f.bad() && f.atEnd();
     }
 
     private static String err(String code, String msg) {
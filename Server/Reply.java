@@ -0,0 +1,362 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Where a connection's responses go. Protocol writes each line straight
+// into it, so a big GET is streamed into the connection's buffer line by
+// line instead of being built up as one String and split apart again.
+// The owner flushes once per response (or per pipelined burst).
+//
+// Starts in text mode; after PROTO BINARY the same calls write Bin records.
+// After COMPRESS ON, note and pin lists past ZIP_MIN bytes go out deflated.
+public final class Reply {
+
+    public static final int ZIP_MIN = 8192;
+
+    // A list as it was written, copied on its way out for GetCache.
+    public static final class Capture {
+        final byte[] b;
+        final int n;
+
+        Capture(byte[] b, int n) {
+            this.b = b;
+            this.n = n;
+        }
+    }
+
+    private final OutputStream raw;
+    private final Sink sink = new Sink();
+    private final PrintWriter w;
+    private final Charset cs;
+    private final String eol;
+    private final char[] num = new char[11];
+
+    private byte[] dict; // non-null while compression is on
+
+    private boolean bin;
+    private final byte[] buf = new byte[8192];
+    private int bn;
+
+    private byte[] cap; // non-null while capturing
+    private int cn, cmax;
+
+    public Reply(OutputStream raw, Charset cs, String eol) {
+        this.raw = raw;
+        this.w = new PrintWriter(new OutputStreamWriter(sink, cs));
+        this.cs = cs;
+        this.eol = eol;
+    }
+
+    // Collects text into buf, lines joined with "\n".
+    public static Reply collect(ByteArrayOutputStream buf) {
+        return new Reply(buf, StandardCharsets.UTF_8, "\n");
+    }
+
+    public boolean binary() {
+        return bin;
+    }
+
+    // Tells apart replies whose lists encode differently (GetCache keys on it).
+    public String form() {
+        return bin ? "b" : cs.name() + eol;
+    }
+
+    // From here on, keeps a copy of what is written (before any deflating),
+    // up to max bytes; past that the copy is dropped and the rest just goes out.
+    public void capture(int max) {
+        push();
+        cap = new byte[Math.min(max, 8192)];
+        cn = 0;
+        cmax = max;
+    }
+
+    // Ends a capture: what was written since capture(), or null if it got too big.
+    public Capture captured() {
+        push();
+        Capture c = cap == null ? null : new Capture(cap, cn);
+        cap = null;
+        return c;
+    }
+
+    // A list captured earlier, written out as is (still deflated like any
+    // other list while compression is on).
+    public void cached(Capture c) {
+        push();
+        if (dict != null) sink.stage();
+        write(c.b, c.n);
+        endList();
+    }
+
+    // Everything after this call is written as Bin records.
+    public void toBinary() {
+        w.flush();
+        bin = true;
+    }
+
+    // dict primes the deflater (see Protocol.zipDict); null turns compression off.
+    public void compress(byte[] dict) {
+        this.dict = dict;
+    }
+
+    public Reply put(String s) {
+        w.write(s);
+        return this;
+    }
+
+    public Reply put(char c) {
+        w.write(c);
+        return this;
+    }
+
+    // Same digits as Integer.toString, without the String.
+    public Reply put(int v) {
+        if (v == Integer.MIN_VALUE) return put(Integer.toString(v));
+
+        int i = num.length;
+        boolean neg = v < 0;
+        if (neg) v = -v;
+        do {
+            num[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (neg) num[--i] = '-';
+
+        w.write(num, i, num.length - i);
+        return this;
+    }
+
+    public void end() {
+        w.write(eol);
+    }
+
+    public void line(String s) {
+        if (bin) {
+            b(Bin.R_LINE);
+            str(s);
+            return;
+        }
+        w.write(s);
+        w.write(eol);
+    }
+
+    // A WATCH event line, sent between responses.
+    public void event(String ev) {
+        if (bin) {
+            b(Bin.R_EVENT);
+            str(ev);
+            return;
+        }
+        w.write(ev);
+        w.write(eol);
+    }
+
+    // "OK <n>" (plus " NEXT <cursor>" for a partial page) ahead of n
+    // note() calls, then endList()
+    public void notes(int n, String next) {
+        begin();
+        if (bin) {
+            if (next != null) {
+                b(Bin.R_PAGE);
+                str(next);
+            } else {
+                b(Bin.R_NOTES);
+            }
+            var(n);
+            return;
+        }
+        put("OK ").put(n);
+        if (next != null) put(" NEXT ").put(next);
+        end();
+    }
+
+    public void note(int x, int y, int ci, String color, String msg, boolean pinned) {
+        if (bin) {
+            var(Bin.zig(x));
+            var(Bin.zig(y));
+            var(ci);
+            b(pinned ? 1 : 0);
+            str(msg);
+            return;
+        }
+        put("NOTE ")
+            .put(x).put(' ')
+            .put(y).put(' ')
+            .put(color).put(' ')
+            .put(msg)
+            .put(" PINNED=").put(pinned ? "true" : "false")
+            .end();
+    }
+
+    // "OK <n>" ahead of n pin() calls, then endList()
+    public void pins(int n) {
+        begin();
+        if (bin) {
+            b(Bin.R_PINS);
+            var(n);
+            return;
+        }
+        put("OK ").put(n).end();
+    }
+
+    public void pin(int x, int y) {
+        if (bin) {
+            var(Bin.zig(x));
+            var(Bin.zig(y));
+            return;
+        }
+        put("PIN ").put(x).put(' ').put(y).end();
+    }
+
+    public void endList() {
+        if (dict == null) return;
+        push();
+        try {
+            sink.end();
+        } catch (IOException e) {
+            // connection is going away; the read side will notice
+        }
+    }
+
+    public void flush() {
+        push();
+        try {
+            raw.flush();
+        } catch (IOException e) {
+            // as above
+        }
+    }
+
+    private void begin() {
+        if (dict == null) return;
+        push();
+        sink.stage();
+    }
+
+    // Hands everything written so far to the sink.
+    private void push() {
+        if (bin) {
+            drain();
+        } else {
+            w.flush();
+        }
+    }
+
+    private void b(int v) {
+        if (bn == buf.length) drain();
+        buf[bn++] = (byte) v;
+    }
+
+    private void var(int v) {
+        while ((v & ~0x7f) != 0) {
+            b((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        b(v);
+    }
+
+    private void str(String s) {
+        byte[] u = s.getBytes(StandardCharsets.UTF_8);
+        var(u.length);
+        if (u.length > buf.length - bn) {
+            drain();
+            if (u.length > buf.length) {
+                write(u, u.length);
+                return;
+            }
+        }
+        System.arraycopy(u, 0, buf, bn, u.length);
+        bn += u.length;
+    }
+
+    private void drain() {
+        write(buf, bn);
+        bn = 0;
+    }
+
+    private void tee(byte[] b, int off, int n) {
+        if (cn + n > cmax) {
+            cap = null;
+            return;
+        }
+        if (cn + n > cap.length) cap = Arrays.copyOf(cap, Math.min(cmax, Math.max(cn + n, cap.length * 2)));
+        System.arraycopy(b, off, cap, cn, n);
+        cn += n;
+    }
+
+    private void write(byte[] b, int n) {
+        try {
+            sink.write(b, 0, n);
+        } catch (IOException e) {
+            // as above
+        }
+    }
+
+    // Everything bound for raw passes through here. While a list is staged
+    // it is held back; once it outgrows ZIP_MIN the DEFLATE marker goes out
+    // and the list continues as one deflate stream, which ends itself, so the
+    // client needs no length up front.
+    private final class Sink extends OutputStream {
+
+        private byte[] stage;
+        private int sn = -1; // staged bytes, -1 when passing through
+        private Deflater def;
+        private final byte[] zb = new byte[8192];
+
+        void stage() {
+            if (stage == null) stage = new byte[ZIP_MIN];
+            sn = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            if (cap != null) tee(b, off, n);
+            if (def != null) {
+                deflate(b, off, n);
+            } else if (sn < 0) {
+                raw.write(b, off, n);
+            } else if (sn + n <= stage.length) {
+                System.arraycopy(b, off, stage, sn, n);
+                sn += n;
+            } else {
+                if (bin) {
+                    raw.write(Bin.R_DEFLATE);
+                } else {
+                    raw.write(("DEFLATE" + eol).getBytes(cs));
+                }
+                def = new Deflater(Deflater.BEST_SPEED);
+                def.setDictionary(dict);
+                deflate(stage, 0, sn);
+                sn = -1;
+                deflate(b, off, n);
+            }
+        }
+
+        void end() throws IOException {
+            if (def != null) {
+                def.finish();
+                while (!def.finished()) raw.write(zb, 0, def.deflate(zb));
+                def.end();
+                def = null;
+            } else if (sn > 0) {
+                raw.write(stage, 0, sn);
+            }
+            sn = -1;
+        }
+
+        private void deflate(byte[] b, int off, int n) throws IOException {
+            def.setInput(b, off, n);
+            while (!def.needsInput()) raw.write(zb, 0, def.deflate(zb));
+        }
+    }
+}
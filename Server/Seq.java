@@ -0,0 +1,26 @@
+import java.util.Arrays;
+
+// Object counterpart of IntSeq: append-only, one writer, lock-free readers.
+public final class Seq<T> {
+
+    private volatile Object[] a = new Object[16];
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        return (T) a[i];
+    }
+
+    public void add(T v) {
+        Object[] arr = a;
+        int s = size;
+        if (s == arr.length) arr = Arrays.copyOf(arr, s * 2);
+        arr[s] = v;
+        a = arr;
+        size = s + 1;
+    }
+}
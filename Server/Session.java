@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Per-connection command state. Almost every line is answered on its own;
+// BATCH <n> makes the session collect the next n lines and answer them once,
+// and WATCH subscribes it to board events, which the connection sends
+// between responses whenever wake tells it some are waiting.
+public class Session {
+
+    private final Board board;
+    private final Lexer lx = new Lexer();
+    private final Runnable wake;
+    private final Predicate<Watch> pusher;
+
+    private List<Op> batch;
+    private int want;
+
+    private Watch watch;
+    private final List<String> evs = new ArrayList<>();
+
+    public Session(Board board, Runnable wake) {
+        this(board, wake, null);
+    }
+
+    // pusher, if given, starts something sending a new watch's events; false
+    // if nothing is free to, and the WATCH then fails.
+    public Session(Board board, Runnable wake, Predicate<Watch> pusher) {
+        this.board = board;
+        this.wake = wake;
+        this.pusher = pusher;
+    }
+
+    public Watch watch() {
+        return watch;
+    }
+
+    // Writes every waiting event to out; false if there were none.
+    public boolean events(Reply out) {
+        Watch w = watch;
+        if (w == null || !w.pending()) return false;
+
+        w.drain(evs);
+        for (String ev : evs) out.event(ev);
+        evs.clear();
+        return true;
+    }
+
+    // Connection is gone.
+    public void close() {
+        unwatch();
+    }
+
+    private void unwatch() {
+        if (watch == null) return;
+        board.unwatch(watch);
+        watch.close();
+        watch = null;
+    }
+
+    // Writes the response (if any yet) to out; true if the connection should close.
+    // Nothing is written while a batch is still being collected.
+    public boolean handle(String line, Reply out) {
+        if (batch != null) return collect(Protocol.batchOp(line, lx, board.colors()), out);
+
+        int n = Protocol.sessionCmd(line, lx);
+        if (n == Protocol.S_WATCH) {
+            if (watch == null) {
+                Watch w = new Watch(wake);
+                if (pusher != null && !pusher.test(w)) {
+                    out.line(Protocol.WATCH_BUSY);
+                    return false;
+                }
+                watch = w;
+                board.watch(w);
+            }
+            out.line(Protocol.OK_WATCH);
+            return false;
+        }
+        if (n == Protocol.S_UNWATCH) {
+            unwatch();
+            out.line(Protocol.OK_UNWATCH);
+            return false;
+        }
+        if (n <= 0) return Protocol.handle(line, board, lx, out);
+
+        batch = new ArrayList<>(Math.min(n, 1024));
+        want = n;
+        return false;
+    }
+
+    // One Bin request frame, once the connection has switched to PROTO BINARY.
+    public boolean frame(byte[] b, int len, Reply out) {
+        Bin.In f = new Bin.In(b, len);
+        int op = f.u8();
+
+        if (op == Bin.OP_TEXT) {
+            String line = f.str();
+            // a text client can't send a line break inside a line either
+            boolean ok = !f.bad() && f.atEnd() && !Protocol.hasBreak(line);
+            return handle(ok ? line : null, out);
+        }
+        if (batch != null) return collect(Protocol.batchOp(op, f, board.colors()), out);
+
+        Protocol.handleOp(op, f, board, out);
+        return false;
+    }
+
+    // Adds one body command to the batch being collected; the last one runs it.
+    private boolean collect(Op op, Reply out) {
+        batch.add(op);
+        if (batch.size() < want) return false;
+
+        List<Op> b = batch;
+        batch = null;
+        out.line(Protocol.handleBatch(b, board));
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Immutable view of the board as of one mutation. Board publishes a new one
+// through a volatile field after every write, and GET runs entirely against
+// it, so readers never take the board lock and never see a half-done write.
+public final class Snap {
+
+    private static final int[] NONE = new int[0];
+
+    private final Gen gen;
+    private final int count;
+    private final PinBits pinned;
+    private final PinList pins;
+    private final long ver;
+    private final long logEnd;
+
+    public Snap(Gen gen, int count, PinBits pinned, PinList pins, long ver, long logEnd) {
+        this.gen = gen;
+        this.count = count;
+        this.pinned = pinned;
+        this.pins = pins;
+        this.ver = ver;
+        this.logEnd = logEnd;
+    }
+
+    public long version() {
+        return ver;
+    }
+
+    // The write-ahead log up to here holds exactly this view (0 without a log).
+    public long logEnd() {
+        return logEnd;
+    }
+
+    // The note columns; every slot below count() is filled in.
+    public NoteCols.Cols cols() {
+        return gen.data.cols();
+    }
+
+    public boolean pinned(int slot) {
+        return pinned.get(slot);
+    }
+
+    public List<Pin> pins() {
+        return pins.list();
+    }
+
+    // Slots of the notes p holds in this view. A pin holds every note
+    // covering its point: PIN takes them all, a later POST over it joins,
+    // and SHAKE only removes notes no pin holds.
+    public int[] held(Pin p) {
+        IntSeq l = gen.cellAt(p.getX(), p.getY());
+        if (l == null) return NONE;
+
+        int[] out = new int[l.size()];
+        int k = 0;
+        for (int i = 0; i < out.length; i++) {
+            int slot = l.get(i);
+            if (slot >= count) break;
+            if (gen.covers(slot, p.getX(), p.getY())) out[k++] = slot;
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    public long genId() {
+        return gen.id;
+    }
+
+    // Notes posted so far in this generation; GET cursors point below this.
+    public int count() {
+        return count;
+    }
+
+    // Slots of the matching notes in posting order. ci is the color index
+    // (-1 for any color); null filters are ignored.
+    public int[] find(int ci, Integer cx, Integer cy, String ref) {
+        return find(ci, cx, cy, ref, 0, Integer.MAX_VALUE);
+    }
+
+    // At most max matching slots, starting at slot from.
+    public int[] find(int ci, Integer cx, Integer cy, String ref, int from, int max) {
+        if (max <= 0) return NONE;
+        Match m = match(ci, cx, cy, ref, from);
+        if (m == null) return NONE;
+
+        int[] out = new int[Math.min(16, max)];
+        int k = 0;
+        int slot;
+        while (k < max && (slot = m.next()) >= 0) {
+            if (k == out.length) out = Arrays.copyOf(out, (int) Math.min(max, k * 2L));
+            out[k++] = slot;
+        }
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    // How many notes match, without collecting them.
+    public int countOf(int ci, Integer cx, Integer cy, String ref) {
+        Match m = match(ci, cx, cy, ref, 0);
+        if (m == null) return 0;
+
+        int k = 0;
+        while (m.next() >= 0) k++;
+        return k;
+    }
+
+    // Null when nothing can match.
+    private Match match(int ci, Integer cx, Integer cy, String ref, int from) {
+        // Start from the smallest candidate list; every index list is in slot
+        // order, so the output order never depends on which one wins.
+        IntSeq src = null;
+        int best = count;
+
+        boolean pt = cx != null && cy != null;
+        if (pt) {
+            IntSeq l = gen.cellAt(cx, cy);
+            if (l == null) return null;
+            if (l.size() < best) { src = l; best = l.size(); }
+        }
+
+        if (ci >= 0) {
+            IntSeq l = gen.byCol[ci];
+            if (l.size() < best) { src = l; best = l.size(); }
+        }
+
+        String low = ref == null ? null : ref.toLowerCase();
+        if (low != null && low.length() >= 3) {
+            // any match must appear in the posting list of every trigram of ref
+            for (int i = 0; i + 3 <= low.length(); i++) {
+                IntSeq l = gen.grams.get(GramIndex.gram(low, i));
+                if (l == null) return null;
+                if (l.size() < best) { src = l; best = l.size(); }
+            }
+        }
+
+        return new Match(src, ci, pt ? cx : 0, pt ? cy : 0, pt, low, from);
+    }
+
+    // Walks one candidate list (or every slot) and yields the slots passing
+    // all filters; the position and color tests only touch the primitive
+    // columns, and a message is looked at only if the note got that far.
+    private final class Match {
+        private final IntSeq src;
+        private final NoteCols.Cols c = gen.data.cols();
+        private final int ci;
+        private final int cx, cy;
+        private final boolean pt;
+        private final String low;
+        private final int end;
+        private int i;
+
+        Match(IntSeq src, int ci, int cx, int cy, boolean pt, String low, int from) {
+            this.src = src;
+            this.ci = ci;
+            this.cx = cx;
+            this.cy = cy;
+            this.pt = pt;
+            this.low = low;
+            this.end = src == null ? count : src.size();
+            this.i = src == null ? Math.min(from, end) : src.lowerBound(from, end);
+        }
+
+        // Next matching slot, or -1.
+        int next() {
+            while (i < end) {
+                int slot = src == null ? i : src.get(i);
+                i++;
+                if (slot >= count) break;
+
+                if (ci >= 0 && (c.ci[slot] & 0xff) != ci) continue;
+                if (pt && !gen.covers(c.x[slot], c.y[slot], cx, cy)) continue;
+                if (low != null && !c.low[slot].contains(low)) continue;
+                return slot;
+            }
+            i = end;
+            return -1;
+        }
+    }
+}
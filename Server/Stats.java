@@ -0,0 +1,51 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Server-wide counters, reported by the STATS command.
+public final class Stats {
+
+    private static final AtomicLong accepted = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
+    private Stats() { }
+
+    // Takes a connection slot unless max (> 0) are already in use.
+    public static boolean reserve(int max) {
+        while (true) {
+            int n = active.get();
+            if (max > 0 && n >= max) return false;
+            if (active.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    public static void release() {
+        active.decrementAndGet();
+    }
+
+    public static void accepted() {
+        accepted.incrementAndGet();
+    }
+
+    public static void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    public static void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public static void cacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    public static String line() {
+        return "OK STATS accepted=" + accepted.get()
+            + " rejected=" + rejected.get()
+            + " active=" + active.get()
+            + " cache_hits=" + cacheHits.get()
+            + " cache_misses=" + cacheMisses.get();
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+// The board cut into a coarse grid of tiles, one lock each. A write locks
+// the tiles its note (or point) touches before it looks at the board, so
+// writes to different regions check and prepare in parallel while two
+// that could collide take turns. Several tiles are always taken in index
+// order and whole-board operations take them all, so nothing deadlocks.
+public final class Tiles {
+
+    private static final int MAX_SIDE = 16;
+
+    private final int tw, th;
+    private final int cols, rows;
+    private final ReentrantLock[] locks;
+
+    public Tiles(int bw, int bh, int nw, int nh) {
+        // never smaller than a note, so one spans at most 2 x 2 tiles
+        tw = (int) Math.max(Math.max(1, nw), span(bw, MAX_SIDE));
+        th = (int) Math.max(Math.max(1, nh), span(bh, MAX_SIDE));
+        cols = (int) span(bw, tw);
+        rows = (int) span(bh, th);
+
+        locks = new ReentrantLock[cols * rows];
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+    }
+
+    public int count() {
+        return locks.length;
+    }
+
+    // Tile holding (x, y); points off the board go to the nearest edge tile.
+    public int at(int x, int y) {
+        return row(y) * cols + col(x);
+    }
+
+    // Locks every tile the rectangle touches (at least the one at x, y).
+    public void lock(int x, int y, int w, int h) {
+        int c0 = col(x), c1 = col(x + Math.max(w, 1) - 1);
+        for (int r = row(y), r1 = row(y + Math.max(h, 1) - 1); r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) locks[r * cols + c].lock();
+        }
+    }
+
+    public void unlock(int x, int y, int w, int h) {
+        int c0 = col(x), c1 = col(x + Math.max(w, 1) - 1);
+        for (int r = row(y), r1 = row(y + Math.max(h, 1) - 1); r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) locks[r * cols + c].unlock();
+        }
+    }
+
+    public void lockAll() {
+        for (ReentrantLock l : locks) l.lock();
+    }
+
+    public void unlockAll() {
+        for (ReentrantLock l : locks) l.unlock();
+    }
+
+    private int col(int x) {
+        return Math.min(cols - 1, Math.max(0, x / tw));
+    }
+
+    private int row(int y) {
+        return Math.min(rows - 1, Math.max(0, y / th));
+    }
+
+    private static long span(int len, long cell) {
+        return Math.max(1, (len + cell - 1) / cell);
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Write-ahead log of board mutations. Board appends one record per
+// successful POST, PIN, UNPIN, SHAKE, CLEAR or BATCH while it still holds
+// the board lock, so the log order is the order they were applied in.
+//
+// Appending only copies into memory. A flusher thread writes and fsyncs
+// whatever has piled up in one go (group commit): while one fsync runs the
+// next batch gathers, and with a delay it also waits up to that long for
+// company first. Connections hold back their replies until sync() says the
+// log covers everything they could have seen.
+//
+// Record: <varint length><body><CRC32 of body, 4 bytes>. The body starts
+// with a kind byte and uses Bin's varints. The first record describes the
+// board, and the log is only replayed onto a board that matches it. It also
+// carries a random id, so a Checkpoint can tell which log it was cut from.
+//
+// Positions in the log (end(), sync(), Snap.logEnd()) are byte offsets.
+public final class Wal {
+
+    static final int K_BOARD = 0; // id(8 bytes) bw bh nw nh ncolors color...
+    static final int K_POST = 1;  // x y ci msg
+    static final int K_PIN = 2;   // x y
+    static final int K_UNPIN = 3; // x y
+    static final int K_SHAKE = 4;
+    static final int K_CLEAR = 5;
+    static final int K_BATCH = 6; // n, then n of (op kind, as K_POST/K_PIN/K_UNPIN)
+
+    // flush early, without waiting out the delay, once this much is waiting
+    private static final int FLUSH_AT = 1 << 20;
+    // a whole BATCH is one record; anything longer is a torn tail
+    private static final int MAX_RECORD = 1 << 24;
+
+    private final FileChannel ch;
+    private final Board board;
+    private final long delay; // nanos
+    private long id;
+
+    // record being built; only touched by the appender, who holds the board lock
+    private byte[] rec = new byte[256];
+    private int rn;
+    private final CRC32 crc = new CRC32();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final Condition done = lock.newCondition();
+    private byte[] buf = new byte[8192];
+    private int n;
+    private volatile long end;    // bytes handed to the log
+    private volatile long synced; // bytes on disk
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private Wal(FileChannel ch, Board board, long delayMicros) {
+        this.ch = ch;
+        this.board = board;
+        this.delay = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    }
+
+    // Replays the log at path onto board (creating the log if there is
+    // none) and returns it ready to append. If checkpoint (may be null) was
+    // cut from this log, the board is loaded from it and only the records
+    // after it are replayed. A record that is cut short or fails its CRC
+    // ends the log: it was torn by a crash mid-write and never acknowledged,
+    // so it and anything after it are cut off.
+    public static Wal open(Path path, Path checkpoint, Board board, long delayMicros) throws IOException {
+        FileChannel ch = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Wal w = new Wal(ch, board, delayMicros);
+
+        long end = ch.size() == 0 ? 0 : w.replay(path, checkpoint);
+        if (end < ch.size()) {
+            System.err.println("Warning: dropping " + (ch.size() - end) + " torn bytes at the end of " + path);
+            ch.truncate(end);
+            ch.force(true);
+        }
+        ch.position(end);
+        w.end = w.synced = end;
+
+        if (end == 0) {
+            w.id = new SecureRandom().nextLong();
+            w.begin(K_BOARD);
+            for (int s = 56; s >= 0; s -= 8) w.b((int) (w.id >>> s));
+            w.zz(board.getBoardW());
+            w.zz(board.getBoardH());
+            w.zz(board.getNoteW());
+            w.zz(board.getNoteH());
+            w.var(board.colors().size());
+            for (int i = 0; i < board.colors().size(); i++) w.str(board.colors().name(i));
+            w.append();
+        }
+
+        Thread t = new Thread(w::flusher, "bboard-wal");
+        t.setDaemon(true);
+        t.start();
+        return w;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    // Where the next record will start.
+    public long end() {
+        return end;
+    }
+
+    // Blocks until the log is on disk up to pos.
+    public void sync(long pos) {
+        if (synced >= pos) return;
+        lock.lock();
+        try {
+            while (synced < pos) done.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if the log is already on disk up to pos; otherwise false, and
+    // then runs on the flusher thread once it is.
+    public boolean synced(long pos, Runnable then) {
+        if (synced >= pos) return true;
+        lock.lock();
+        try {
+            if (synced >= pos) return true;
+            waiters.add(new Waiter(pos, then));
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Appenders; each returns end() after its record.
+
+    public long post(int x, int y, int ci, String msg) {
+        begin(K_POST);
+        postBody(x, y, ci, msg);
+        return append();
+    }
+
+    public long pin(int x, int y) {
+        return point(K_PIN, x, y);
+    }
+
+    public long unpin(int x, int y) {
+        return point(K_UNPIN, x, y);
+    }
+
+    public long shake() {
+        begin(K_SHAKE);
+        return append();
+    }
+
+    public long clear() {
+        begin(K_CLEAR);
+        return append();
+    }
+
+    public long batch(List<Op> ops) {
+        begin(K_BATCH);
+        var(ops.size());
+        for (Op op : ops) {
+            if (op.kind == Op.POST) {
+                b(K_POST);
+                postBody(op.x, op.y, op.ci, op.msg);
+            } else {
+                b(op.kind == Op.PIN ? K_PIN : K_UNPIN);
+                zz(op.x);
+                zz(op.y);
+            }
+        }
+        return append();
+    }
+
+    private long point(int kind, int x, int y) {
+        begin(kind);
+        zz(x);
+        zz(y);
+        return append();
+    }
+
+    private void postBody(int x, int y, int ci, String msg) {
+        zz(x);
+        zz(y);
+        var(ci);
+        str(msg);
+    }
+
+    private void begin(int kind) {
+        rn = 0;
+        b(kind);
+    }
+
+    private void b(int v) {
+        if (rn == rec.length) rec = Arrays.copyOf(rec, rn * 2);
+        rec[rn++] = (byte) v;
+    }
+
+    private void var(int v) {
+        while ((v & ~0x7f) != 0) {
+            b((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        b(v);
+    }
+
+    private void zz(int v) {
+        var(Bin.zig(v));
+    }
+
+    private void str(String s) {
+        byte[] u = s.getBytes(StandardCharsets.UTF_8);
+        var(u.length);
+        if (rn + u.length > rec.length) rec = Arrays.copyOf(rec, Math.max(rn + u.length, rec.length * 2));
+        System.arraycopy(u, 0, rec, rn, u.length);
+        rn += u.length;
+    }
+
+    // Frames rec into the pending buffer for the flusher.
+    private long append() {
+        crc.reset();
+        crc.update(rec, 0, rn);
+        int c = (int) crc.getValue();
+
+        lock.lock();
+        try {
+            int need = n + 5 + rn + 4;
+            if (need > buf.length) buf = Arrays.copyOf(buf, Math.max(need, buf.length * 2));
+
+            int at = n;
+            int len = rn;
+            while ((len & ~0x7f) != 0) {
+                buf[n++] = (byte) ((len & 0x7f) | 0x80);
+                len >>>= 7;
+            }
+            buf[n++] = (byte) len;
+            System.arraycopy(rec, 0, buf, n, rn);
+            n += rn;
+            for (int s = 24; s >= 0; s -= 8) buf[n++] = (byte) (c >>> s);
+
+            end += n - at;
+            work.signal();
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flusher() {
+        byte[] out = new byte[buf.length];
+        while (true) {
+            int len;
+            long upTo;
+
+            lock.lock();
+            try {
+                while (n == 0) work.awaitUninterruptibly();
+                long left = delay;
+                while (left > 0 && n < FLUSH_AT) {
+                    try {
+                        left = work.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                byte[] t = buf;
+                buf = out.length >= t.length ? out : new byte[t.length];
+                out = t;
+                len = n;
+                n = 0;
+                upTo = end;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(out, 0, len);
+                while (bb.hasRemaining()) ch.write(bb);
+                ch.force(false);
+            } catch (IOException e) {
+                // acknowledging writes that never reached the disk would be worse than stopping
+                System.err.println("Error: write-ahead log failed: " + e.getMessage());
+                System.exit(1);
+            }
+
+            List<Runnable> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                synced = upTo;
+                done.signalAll();
+                for (int i = waiters.size() - 1; i >= 0; i--) {
+                    Waiter wt = waiters.get(i);
+                    if (wt.pos <= upTo) {
+                        ready.add(wt.then);
+                        waiters.remove(i);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable r : ready) r.run();
+        }
+    }
+
+    // Applies every intact record to board, or the checkpoint and the
+    // records after it; returns the offset just past the last one.
+    private long replay(Path path, Path checkpoint) throws IOException {
+        long end = 0;
+        try (FileChannel rc = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream in = reader(rc);
+            byte[] body = new byte[256];
+            boolean first = true;
+
+            while (true) {
+                int len = 0, hdr = 0;
+                int c;
+                for (int shift = 0; ; shift += 7) {
+                    c = in.read();
+                    if (c < 0 || shift > 28) return end;
+                    hdr++;
+                    len |= (c & 0x7f) << shift;
+                    if (c < 0x80) break;
+                }
+                if (len <= 0 || len > MAX_RECORD) return end;
+
+                if (body.length < len) body = new byte[Math.max(len, body.length * 2)];
+                int sum;
+                try {
+                    in.readFully(body, 0, len);
+                    sum = in.readInt();
+                } catch (EOFException e) {
+                    return end;
+                }
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != sum) return end;
+
+                Bin.In f = new Bin.In(body, len);
+                end += hdr + len + 4;
+                if (first) {
+                    checkBoard(f, path);
+                    first = false;
+
+                    long from = checkpoint == null ? -1 : Checkpoint.load(checkpoint, board, id, end, ch.size());
+                    if (from > end) {
+                        rc.position(from);
+                        in = reader(rc);
+                        end = from;
+                    }
+                } else if (!apply(f.u8(), f)) {
+                    // intact but unreadable: not a torn write, so don't cut the log here
+                    throw new IOException(path + ": bad record at offset " + (end - hdr - len - 4));
+                }
+            }
+        }
+    }
+
+    private static DataInputStream reader(FileChannel rc) {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(rc), 1 << 16));
+    }
+
+    private void checkBoard(Bin.In f, Path path) throws IOException {
+        boolean same = f.u8() == K_BOARD;
+        for (int i = 0; i < 8; i++) id = id << 8 | f.u8();
+        same = same
+            && f.zz() == board.getBoardW() && f.zz() == board.getBoardH()
+            && f.zz() == board.getNoteW() && f.zz() == board.getNoteH()
+            && f.var() == board.colors().size();
+        for (int i = 0; same && i < board.colors().size(); i++) same = f.str().equals(board.colors().name(i));
+
+        if (!same || f.bad()) {
+            throw new IOException(path + " was written for a different board size or color list");
+        }
+    }
+
+    // false if the record doesn't parse
+    private boolean apply(int kind, Bin.In f) {
+        switch (kind) {
+            case K_POST: {
+                int x = f.zz(), y = f.zz(), ci = f.var();
+                String msg = f.str();
+                if (f.bad() || !board.colors().has(ci)) return false;
+                board.post(x, y, ci, msg);
+                return true;
+            }
+            case K_PIN: {
+                int x = f.zz(), y = f.zz();
+                if (f.bad()) return false;
+                board.pinAt(x, y);
+                return true;
+            }
+            case K_UNPIN: {
+                int x = f.zz(), y = f.zz();
+                if (f.bad()) return false;
+                board.unpinAt(x, y);
+                return true;
+            }
+            case K_SHAKE:
+                board.shake();
+                return true;
+            case K_CLEAR:
+                board.clear();
+                return true;
+            case K_BATCH: {
+                int cnt = f.var();
+                List<Op> ops = new ArrayList<>();
+                for (int i = 0; i < cnt && !f.bad(); i++) {
+                    int k = f.u8();
+                    int x = f.zz(), y = f.zz();
+                    if (k == K_POST) {
+                        int ci = f.var();
+                        String msg = f.str();
+                        if (!board.colors().has(ci)) return false;
+                        ops.add(Op.post(x, y, ci, msg));
+                    } else if (k == K_PIN) {
+                        ops.add(Op.pin(x, y));
+                    } else if (k == K_UNPIN) {
+                        ops.add(Op.unpin(x, y));
+                    } else {
+                        return false;
+                    }
+                }
+                if (f.bad()) return false;
+                board.batch(ops);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private static final class Waiter {
+        final long pos;
+        final Runnable then;
+
+        Waiter(long pos, Runnable then) {
+            this.pos = pos;
+            this.then = then;
+        }
+    }
+}
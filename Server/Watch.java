@@ -0,0 +1,122 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One WATCH subscriber's undelivered events. Board adds to it while holding
+// the board lock, so add() never blocks and never waits on the client: the
+// queue is bounded, and a watcher that falls MAX events behind loses them
+// all for a single RESYNC telling it to re-read the board.
+//
+// Queued events are coalesced where that can't change what the watcher
+// ends up believing: CLEARED drops everything queued before it, and an
+// event that repeats the one just before it (SHAKEN twice, the same point
+// PINNED twice) is a no-op and is dropped. The connection then sends
+// whatever has piled up in one write.
+//
+// A lock and condition rather than the monitor: the pusher parked in
+// await() may be a virtual thread, and one waiting on a monitor would hold
+// its carrier for as long as the watch stays quiet.
+public final class Watch {
+
+    public static final int MAX = 1024;
+
+    public static final String ADDED = "EVENT NOTE_ADDED ";
+    public static final String PINNED = "EVENT PINNED ";
+    public static final String UNPINNED = "EVENT UNPINNED ";
+    public static final String SHAKEN = "EVENT SHAKEN";
+    public static final String CLEARED = "EVENT CLEARED";
+    public static final String RESYNC = "EVENT RESYNC";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final ArrayDeque<String> q = new ArrayDeque<>();
+    private final Runnable wake;
+    private boolean resync;
+    private boolean closed;
+
+    // wake runs (under this watch's lock) when the queue goes from empty to not.
+    public Watch(Runnable wake) {
+        this.wake = wake;
+    }
+
+    public void add(String ev) {
+        lock.lock();
+        try {
+            push(ev);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void push(String ev) {
+        if (closed || resync) return;
+
+        boolean was = q.isEmpty();
+        String last = q.peekLast();
+
+        if (ev == CLEARED) {
+            q.clear();
+        } else if (ev == SHAKEN) {
+            if (last == SHAKEN || last == CLEARED) return;
+        } else if (ev.startsWith(PINNED) && ev.equals(last)) {
+            return;
+        }
+
+        if (q.size() >= MAX) {
+            q.clear();
+            q.add(RESYNC);
+            resync = true;
+        } else {
+            q.add(ev);
+        }
+
+        if (was) {
+            ready.signalAll();
+            if (wake != null) wake.run();
+        }
+    }
+
+    // Moves every queued event into out, oldest first.
+    public void drain(List<String> out) {
+        lock.lock();
+        try {
+            out.addAll(q);
+            q.clear();
+            resync = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean pending() {
+        lock.lock();
+        try {
+            return !q.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until there is something to drain; false once closed.
+    public boolean await() throws InterruptedException {
+        lock.lock();
+        try {
+            while (q.isEmpty() && !closed) ready.await();
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            q.clear();
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
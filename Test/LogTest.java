@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// The write-ahead log and checkpoints, against Boards directly:
+//   javac -d out Server/*.java Test/*.java && java -cp out LogTest
+public class LogTest {
+
+    private static int failed;
+
+    public static void main(String[] args) throws Exception {
+        replayAfterCheckpoint();
+
+        if (failed > 0) {
+            System.out.println(failed + " failed");
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    // A restart loads the checkpoint and replays only the log after it, and
+    // ends up where the board was.
+    static void replayAfterCheckpoint() throws IOException {
+        Path dir = Files.createTempDirectory("bboard");
+        Path log = dir.resolve("b.log"), ck = dir.resolve("b.ck");
+
+        Board b = board();
+        Wal wal = Wal.open(log, ck, b, 0);
+        b.logTo(wal);
+        Protocol.handle("POST 1 1 red before", b);
+        Protocol.handle("POST 10 10 blue also before", b);
+        Protocol.handle("PIN 2 2", b);
+        Checkpoint.write(ck, b.snap(), wal);
+        String atCheckpoint = Protocol.handle("GET", b);
+
+        Protocol.handle("POST 20 20 red after", b);
+        Protocol.handle("UNPIN 2 2", b);
+        Protocol.handle("PIN 11 11", b);
+        Protocol.handle("SHAKE", b);
+        Protocol.handle("POST 30 30 red last", b);
+        b.sync(b.logMark());
+
+        Board c = board();
+        long from = Checkpoint.load(ck, c, wal.id(), 0, Files.size(log));
+        check("checkpoint used", from > 0 && from < Files.size(log));
+        check("checkpoint holds its cut", Protocol.handle("GET", c).equals(atCheckpoint));
+
+        Board r = board();
+        r.logTo(Wal.open(log, ck, r, 0));
+        check("notes after restart", Protocol.handle("GET", r).equals(Protocol.handle("GET", b)));
+        check("pins after restart", Protocol.handle("GET PINS", r).equals(Protocol.handle("GET PINS", b)));
+        check("board after restart", Protocol.handle("GET", r)
+            .equals("OK 2\nNOTE 10 10 blue also before PINNED=true\nNOTE 30 30 red last PINNED=false"));
+    }
+
+    static Board board() {
+        return new Board(100, 100, 5, 5, new Colors(new String[] { "red", "blue" }));
+    }
+
+    static void check(String what, boolean ok) {
+        if (ok) return;
+        System.out.println("FAIL " + what);
+        failed++;
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Protocol edge cases, run against a Board directly:
+//   javac -d out Server/*.java Test/*.java && java -cp out ProtocolTest
+public class ProtocolTest {
+
+    private static int failed;
+
+    public static void main(String[] args) {
+        maxLimit();
+        lineBreaks();
+        cacheKeys();
+        binaryBatch();
+        batchAtomic();
+        pagingAcrossShake();
+
+        if (failed > 0) {
+            System.out.println(failed + " failed");
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    static void maxLimit() {
+        Board b = board();
+        Protocol.handle("POST 1 1 red a", b);
+        Protocol.handle("POST 20 20 red b", b);
+
+        check("text limit=MAX", Protocol.handle("GET limit=2147483647", b).startsWith("OK 2\n"));
+        check("text limit over MAX", Protocol.handle("GET limit=2147483648", b).startsWith("ERROR INVALID_FORMAT"));
+
+        byte[] out = op(b, Bin.OP_GET, frame(Bin.F_LIMIT, Integer.MAX_VALUE));
+        check("binary limit=MAX", out.length > 1 && out[0] == Bin.R_NOTES && out[1] == 2);
+    }
+
+    static void lineBreaks() {
+        Board b = board();
+        String evil = "x\nOK 0\nEVENT CLEARED";
+
+        byte[] post = body(Bin.OP_POST, 2, 2, 0);
+        post = cat(post, str(evil));
+        byte[] out = op(b, Bin.OP_POST, Arrays.copyOfRange(post, 1, post.length));
+        check("binary POST with LF", new String(out, StandardCharsets.UTF_8).contains("ERROR INVALID_FORMAT"));
+
+        Session ses = new Session(b, null);
+        byte[] text = cat(new byte[] { Bin.OP_TEXT }, str("POST 3 3 red " + evil));
+        ses.frame(text, text.length, Reply.collect(new ByteArrayOutputStream()));
+        byte[] cr = cat(new byte[] { Bin.OP_TEXT }, str("POST 4 4 red a\rb"));
+        ses.frame(cr, cr.length, Reply.collect(new ByteArrayOutputStream()));
+
+        check("text POST with LF", Protocol.handle("POST 5 5 red " + evil, b).startsWith("ERROR INVALID_FORMAT"));
+        Op bad = Protocol.batchOp("POST 6 6 red " + evil, new Lexer(), b.colors());
+        check("BATCH POST with LF", Protocol.handleBatch(List.of(bad), b).startsWith("ERROR INVALID_FORMAT"));
+        check("nothing stored", Protocol.handle("GET", b).equals("OK 0"));
+    }
+
+    // Binary after= and ref= may hold spaces; two GETs that differ only in how
+    // those split must not share a cache entry, and a bad cursor is an error
+    // even when a GET with the same key text was cached.
+    static void cacheKeys() {
+        Board b = board();
+        for (int i = 0; i < 4; i++) Protocol.handle("POST " + (i * 6) + " 1 red q - " + i, b);
+        String c = b.snap().genId() + ".0";
+
+        byte[] good = cat(cat(frame(Bin.F_REF | Bin.F_LIMIT | Bin.F_AFTER), str("q -")), cat(frame(2), str(c)));
+        byte[] first = op(b, Bin.OP_GET, good);
+        check("paged GET", first.length > 1 && first[0] == Bin.R_PAGE);
+
+        byte[] bad = cat(frame(Bin.F_LIMIT | Bin.F_AFTER, 2), str(c + " =q"));
+        check("bad cursor not served from cache",
+            new String(op(b, Bin.OP_GET, bad), StandardCharsets.UTF_8).contains("ERROR INVALID_FORMAT"));
+        check("same GET served again", Arrays.equals(first, op(b, Bin.OP_GET, good)));
+    }
+
+    // A compact POST inside a BATCH is stored just as it is outside one,
+    // leading spaces included.
+    static void binaryBatch() {
+        Board b = board();
+        Session ses = new Session(b, null);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Reply r = Reply.collect(buf);
+        r.toBinary();
+
+        byte[] head = cat(new byte[] { Bin.OP_TEXT }, str("BATCH 2"));
+        ses.frame(head, head.length, r);
+        byte[] p1 = cat(body(Bin.OP_POST, 1, 1, 0), str("  lead"));
+        ses.frame(p1, p1.length, r);
+        byte[] p2 = cat(body(Bin.OP_POST, 20, 20, 1), str("plain"));
+        ses.frame(p2, p2.length, r);
+        r.flush();
+        check("binary BATCH applied", new String(buf.toByteArray(), StandardCharsets.UTF_8).contains("OK BATCHED 2"));
+
+        byte[] p3 = cat(body(Bin.OP_POST, 40, 40, 0), str("  lead"));
+        op(b, Bin.OP_POST, Arrays.copyOfRange(p3, 1, p3.length));
+        check("same message both ways", Protocol.handle("GET color=red", b)
+            .equals("OK 2\nNOTE 1 1 red   lead PINNED=false\nNOTE 40 40 red   lead PINNED=false"));
+    }
+
+    // A BATCH with one bad command changes nothing; a good one lands as a
+    // single change, its PIN seeing the POST before it.
+    static void batchAtomic() {
+        Board b = board();
+        Protocol.handle("POST 1 1 red a", b);
+        long v = b.snap().version();
+
+        String bad = text(b, "BATCH 3", "POST 20 20 red b", "PIN 21 21", "POST 1 1 red dup");
+        check("bad BATCH fails at its command", bad.startsWith("ERROR COMPLETE_OVERLAP Command 3:"));
+        check("bad BATCH leaves the board", Protocol.handle("GET", b).equals("OK 1\nNOTE 1 1 red a PINNED=false")
+            && Protocol.handle("GET PINS", b).equals("OK 0") && b.snap().version() == v);
+
+        check("good BATCH", text(b, "BATCH 2", "POST 30 30 blue c", "PIN 31 31").equals("OK BATCHED 2"));
+        check("good BATCH is one change", b.snap().version() == v + 1);
+        check("good BATCH applied", Protocol.handle("GET color=blue", b).equals("OK 1\nNOTE 30 30 blue c PINNED=true"));
+    }
+
+    // Pages walk every match once; after a SHAKE the old cursor is refused
+    // rather than resumed in the wrong generation.
+    static void pagingAcrossShake() {
+        Board b = board();
+        for (int i = 0; i < 5; i++) Protocol.handle("POST " + (i * 10) + " 0 red n" + i, b);
+        Protocol.handle("PIN 41 1", b);
+
+        String p1 = Protocol.handle("GET limit=2", b);
+        String c = p1.substring(p1.indexOf(" NEXT ") + 6, p1.indexOf('\n'));
+        String p2 = Protocol.handle("GET limit=2 after=" + c, b);
+        String c2 = p2.substring(p2.indexOf(" NEXT ") + 6, p2.indexOf('\n'));
+        String p3 = Protocol.handle("GET limit=2 after=" + c2, b);
+        check("pages", p1.contains("n0") && p1.contains("n1") && p2.contains("n2") && p2.contains("n3")
+            && p3.equals("OK 1\nNOTE 40 0 red n4 PINNED=true"));
+
+        Protocol.handle("SHAKE", b);
+        check("stale cursor", Protocol.handle("GET limit=2 after=" + c, b).startsWith("ERROR STALE_CURSOR"));
+        check("paging after SHAKE", Protocol.handle("GET limit=2", b).equals("OK 1\nNOTE 40 0 red n4 PINNED=true"));
+    }
+
+    // Runs text lines through a Session; the replies, lines joined with "\n".
+    static String text(Board b, String... lines) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Reply r = Reply.collect(buf);
+        Session ses = new Session(b, null);
+        for (String l : lines) ses.handle(l, r);
+        r.flush();
+        return buf.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    static Board board() {
+        return new Board(100, 100, 5, 5, new Colors(new String[] { "red", "blue" }));
+    }
+
+    // Runs one compact request and returns the binary reply.
+    static byte[] op(Board b, int op, byte[] body) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        Reply r = Reply.collect(buf);
+        r.toBinary();
+        Protocol.handleOp(op, new Bin.In(body, body.length), b, r);
+        r.flush();
+        return buf.toByteArray();
+    }
+
+    // op, then zigzag x and y, then a varint.
+    static byte[] body(int op, int x, int y, int v) {
+        ByteArrayOutputStream f = new ByteArrayOutputStream();
+        f.write(op);
+        var(f, Bin.zig(x));
+        var(f, Bin.zig(y));
+        var(f, v);
+        return f.toByteArray();
+    }
+
+    static byte[] str(String s) {
+        byte[] u = s.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream f = new ByteArrayOutputStream();
+        var(f, u.length);
+        f.write(u, 0, u.length);
+        return f.toByteArray();
+    }
+
+    static byte[] cat(byte[] a, byte[] b) {
+        byte[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    // A frame body: the first value as a byte, the rest as varints.
+    static byte[] frame(int first, int... vars) {
+        ByteArrayOutputStream f = new ByteArrayOutputStream();
+        f.write(first);
+        for (int v : vars) var(f, v);
+        return f.toByteArray();
+    }
+
+    static void var(ByteArrayOutputStream f, int v) {
+        while ((v & ~0x7f) != 0) {
+            f.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        f.write(v);
+    }
+
+    static void check(String what, boolean ok) {
+        if (ok) return;
+        System.out.println("FAIL " + what);
+        failed++;
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs BBoardServer in-process and talks to it over sockets:
+//   javac -d out Server/*.java Test/*.java && java -cp out ServerTest
+public class ServerTest {
+
+    private static int failed;
+
+    public static void main(String[] args) throws Exception {
+        manyWatchers();
+        frames("--mode=thread");
+        frames("--mode=nio");
+        watchEvents("--mode=thread");
+        watchEvents("--mode=nio");
+
+        if (failed > 0) {
+            System.out.println(failed + " failed");
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    // Parked WATCH pushers must not hold carrier threads, of which there
+    // are at most 256: a client past that many watchers still gets served.
+    static void manyWatchers() throws Exception {
+        if (Runtime.version().feature() < 21) {
+            System.out.println("skip manyWatchers: virtual mode needs Java 21");
+            return;
+        }
+        int port = start("--mode=virtual");
+
+        List<Client> watchers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 300; i++) {
+                Client c = new Client(port);
+                c.send("WATCH");
+                if (!"OK WATCHING".equals(c.line())) {
+                    check("watcher " + i + " subscribed", false);
+                    return;
+                }
+                watchers.add(c);
+            }
+
+            Client late = new Client(port);
+            late.send("POST 1 1 red hi");
+            check("client after 300 watchers", "OK NOTE_POSTED".equals(late.line()));
+            check("watcher sees the post", "EVENT NOTE_ADDED 1 1 red hi".equals(watchers.get(299).line()));
+            late.close();
+        } finally {
+            for (Client c : watchers) c.close();
+        }
+    }
+
+    // A watcher hears about every change, in order, until UNWATCH.
+    static void watchEvents(String mode) throws Exception {
+        int port = start(mode);
+        Client w = new Client(port);
+        Client c = new Client(port);
+        try {
+            w.send("WATCH");
+            check(mode + " WATCH", "OK WATCHING".equals(w.line()));
+
+            String[] cmds = { "POST 1 1 red hi there", "PIN 2 2", "UNPIN 2 2", "SHAKE" };
+            String[] evs = { "EVENT NOTE_ADDED 1 1 red hi there", "EVENT PINNED 2 2", "EVENT UNPINNED 2 2", "EVENT SHAKEN" };
+            for (String cmd : cmds) {
+                c.send(cmd);
+                c.line();
+            }
+            for (String ev : evs) check(mode + " " + ev, ev.equals(w.line()));
+
+            w.send("UNWATCH");
+            check(mode + " UNWATCH", "OK UNWATCHED".equals(w.line()));
+            c.send("POST 20 20 blue later");
+            c.line();
+            w.send("GET COUNT");
+            check(mode + " no events after UNWATCH", "OK COUNT 1".equals(w.line()));
+        } finally {
+            w.close();
+            c.close();
+        }
+    }
+
+    // A frame longer than the line buffer still arrives whole; one claiming
+    // more than MAX_FRAME closes the connection.
+    static void frames(String mode) throws Exception {
+        int port = start(mode);
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            out.write("PROTO BINARY\n".getBytes(StandardCharsets.UTF_8));
+            // BOARD, NOTE, COLORS, OK PROTO BINARY
+            for (int i = 0; i < 4; i++) textLine(in);
+
+            String msg = "m".repeat(5000);
+            ByteArrayOutputStream f = new ByteArrayOutputStream();
+            f.write(Bin.OP_POST);
+            var(f, Bin.zig(2));
+            var(f, Bin.zig(3));
+            var(f, 0);
+            byte[] u = msg.getBytes(StandardCharsets.UTF_8);
+            var(f, u.length);
+            f.write(u);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            var(frame, f.size());
+            f.writeTo(frame);
+            out.write(frame.toByteArray());
+
+            DataInputStream d = new DataInputStream(in);
+            check(mode + " big frame kind", d.read() == Bin.R_LINE);
+            byte[] r = new byte[d.read()];
+            d.readFully(r);
+            check(mode + " big frame posted", new String(r, StandardCharsets.UTF_8).equals("OK NOTE_POSTED"));
+
+            ByteArrayOutputStream big = new ByteArrayOutputStream();
+            var(big, Bin.MAX_FRAME + 1);
+            out.write(big.toByteArray());
+            check(mode + " oversized frame closes", in.read() < 0);
+        }
+    }
+
+    static String textLine(InputStream in) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') b.write(c);
+        return b.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    static void var(ByteArrayOutputStream f, int v) {
+        while ((v & ~0x7f) != 0) {
+            f.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        f.write(v);
+    }
+
+    // Starts a server on a free port with the given options; returns the port.
+    static int start(String... opts) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        List<String> a = new ArrayList<>(List.of(opts));
+        a.addAll(List.of(Integer.toString(port), "100", "100", "5", "5", "red", "blue"));
+        Thread t = new Thread(() -> BBoardServer.main(a.toArray(new String[0])));
+        t.setDaemon(true);
+        t.start();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("server did not start");
+    }
+
+    // A text client past the handshake.
+    static final class Client {
+        final Socket s;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Client(int port) throws IOException {
+            s = new Socket("127.0.0.1", port);
+            s.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            out = new PrintWriter(s.getOutputStream(), true);
+            // BOARD, NOTE and COLORS
+            for (int i = 0; i < 3; i++) line();
+        }
+
+        void send(String cmd) {
+            out.println(cmd);
+        }
+
+        String line() throws IOException {
+            try {
+                return in.readLine();
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+        }
+
+        void close() {
+            try { s.close(); } catch (IOException e) { }
+        }
+    }
+
+    static void check(String what, boolean ok) {
+        if (ok) return;
+        System.out.println("FAIL " + what);
+        failed++;
+    }
+}